@@ -0,0 +1,207 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * The per-firing critical section of each coordination strategy, against an in-memory
+ * H2 database with the same tables and indexes as the services. The locks are the
+ * shared {@link BatchLockRegistry} (keeping leases, as by default), and the SQL is the
+ * services' own, including the write-behind batches. Run with <code>-t</code> to set
+ * the number of contending threads: with fewer hooks more of them collide. Every
+ * firing is for a new instant, so a claim only fails when another thread holds the
+ * hook.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoordinationBenchmark {
+
+	// Hook.State ordinals in cron-service-optimist
+	private static final int COMPLETE = 0;
+	private static final int RUNNING = 1;
+
+	// HookService.TOKEN_SPACING in cron-service-optimist
+	private static final long TOKEN_SPACING = 1024L;
+
+	// The writers' default hooks.writer.batch-size and hooks.writer.interval
+	private static final int WRITE_BATCH = 500;
+	private static final long WRITE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	// HookWriter.CLAIM_QUERY in cron-service-locks
+	private static final String LOCKS_CLAIM = "UPDATE hook SET version=version+1, fired=? "
+			+ "WHERE id=? AND fired<?";
+
+	// HookRepository.findVersion in cron-service-leader
+	private static final String LEADER_VERSION = "SELECT version FROM hook WHERE id=?";
+
+	// HookWriter.UPDATE_QUERY in cron-service-leader
+	private static final String LEADER_UPDATE = "UPDATE hook SET version=?, fired=? "
+			+ "WHERE id=? AND version=?";
+
+	// HookRepository.start in cron-service-optimist
+	private static final String OPTIMIST_START = "UPDATE hook SET state=?, version=?, "
+			+ "retry_at=0, fired=? WHERE id=? AND state<>? AND fired<? AND version<?";
+
+	// HookWriter.UPDATE_QUERY in cron-service-optimist
+	private static final String OPTIMIST_FINISH = "UPDATE hook SET state=?, retry_at=?, "
+			+ "attempts=?, version=version+1 WHERE id=? AND state=? AND version=?";
+
+	@Param({ "1", "100", "10000" })
+	public int hooks;
+
+	private final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+	private JdbcConnectionPool dataSource;
+	private JdbcTemplate template;
+	private TransactionTemplate transaction;
+	private BatchLockRegistry registry;
+
+	@Setup
+	public void setup() {
+		dataSource = JdbcConnectionPool.create(
+				"jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+		dataSource.setMaxConnections(64);
+		new ResourceDatabasePopulator(new ClassPathResource(
+				"org/springframework/integration/jdbc/schema-h2.sql"))
+						.execute(dataSource);
+		template = new JdbcTemplate(dataSource);
+		// As in schema-lock-index.sql in the services
+		template.execute(
+				"CREATE INDEX INT_LOCK_EXPIRY_IDX ON INT_LOCK (REGION, CREATED_DATE)");
+		transaction = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+		// The columns of the Hook entities that the firings touch
+		template.execute("CREATE TABLE hook (id BIGINT PRIMARY KEY, "
+				+ "version BIGINT NOT NULL, fired BIGINT NOT NULL, state INT NOT NULL, "
+				+ "retry_at BIGINT NOT NULL, attempts INT NOT NULL)");
+		List<Object[]> rows = new ArrayList<>();
+		for (long id = 1; id <= hooks; id++) {
+			rows.add(new Object[] { id, 0L, 0L, COMPLETE, 0L, 0 });
+		}
+		template.batchUpdate("INSERT INTO hook (id, version, fired, state, retry_at, "
+				+ "attempts) VALUES (?, ?, ?, ?, ?, ?)", rows);
+		registry = new BatchLockRegistry(new BatchLockRepository(dataSource));
+	}
+
+	@TearDown
+	public void close() {
+		dataSource.dispose();
+	}
+
+	/**
+	 * The write-behind queue, flushed as one batch when it is full or on the writers'
+	 * interval, by one thread at a time (the services have a single flusher thread).
+	 */
+	@State(Scope.Benchmark)
+	public static class Writes {
+
+		private final BlockingQueue<Object[]> queue = new LinkedBlockingQueue<>();
+
+		private final Lock flusher = new ReentrantLock();
+
+		private volatile long flushed = System.nanoTime();
+
+		void add(CoordinationBenchmark benchmark, String sql, Object[] row) {
+			queue.add(row);
+			if ((queue.size() >= WRITE_BATCH
+					|| System.nanoTime() - flushed >= WRITE_INTERVAL) && flusher.tryLock()) {
+				try {
+					List<Object[]> batch = new ArrayList<>();
+					queue.drainTo(batch, WRITE_BATCH);
+					benchmark.transaction
+							.execute(status -> benchmark.template.batchUpdate(sql, batch));
+					flushed = System.nanoTime();
+				}
+				finally {
+					flusher.unlock();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * cron-service-locks: take the hook's lock, claim the instant before releasing it.
+	 */
+	@Benchmark
+	public boolean lock() {
+		long id = pick();
+		long instant = clock.incrementAndGet();
+		Map<Object, Lock> held = registry
+				.tryLockAll(Collections.singletonList("hooks/" + id));
+		try {
+			return !held.isEmpty() && transaction.execute(status -> template
+					.update(LOCKS_CLAIM, instant, id, instant)) == 1;
+		}
+		finally {
+			registry.unlockAll(held.values());
+		}
+	}
+
+	/**
+	 * cron-service-leader: read the version to check the snapshot (here, the value just
+	 * read), and queue the conditional bump behind the ping.
+	 */
+	@Benchmark
+	public long fence(Writes writes) {
+		long id = pick();
+		long version = template.queryForObject(LEADER_VERSION, Long.class, id);
+		writes.add(this, LEADER_UPDATE,
+				new Object[] { version + 1, clock.incrementAndGet(), id, version });
+		return version;
+	}
+
+	/**
+	 * cron-service-optimist: claim the hook for an instant in one conditional update,
+	 * and queue the finish behind the ping.
+	 */
+	@Benchmark
+	public boolean claim(Writes writes) {
+		long id = pick();
+		long instant = clock.incrementAndGet();
+		long token = instant * TOKEN_SPACING;
+		if (template.update(OPTIMIST_START, RUNNING, token, instant, id, RUNNING, instant,
+				token) == 0) {
+			return false;
+		}
+		writes.add(this, OPTIMIST_FINISH,
+				new Object[] { COMPLETE, 0L, 0, id, RUNNING, token });
+		return true;
+	}
+
+	private long pick() {
+		return ThreadLocalRandom.current().nextLong(hooks) + 1;
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.example;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import org.springframework.integration.jdbc.lock.JdbcLockRegistry;
+import org.springframework.integration.support.locks.LockRegistry;
+import org.springframework.integration.util.UUIDConverter;
+
+/**
+ * A {@link JdbcLockRegistry} that can also lock (and unlock) a whole batch of keys at
+ * once, e.g. all the hooks due at the same instant, with a few statements per batch
+ * instead of one per key. There are two tiers: the whole batch is first claimed in the
+ * table, where the {@link BatchLockRepository} keeps a lease so repeated and reentrant
+ * locking mostly stays in memory, and only then is each claimed lock taken locally
+ * (the <code>JdbcLock</code>'s own lock, which finds the lease and does not go back to
+ * the database). A key whose local lock is held by another thread here is left to that
+ * thread, and the claim made for it is dropped unless leases are kept.
+ */
+class BatchLockRegistry implements LockRegistry {
+
+	private final JdbcLockRegistry delegate;
+	private final BatchLockRepository repository;
+
+	public BatchLockRegistry(BatchLockRepository repository) {
+		this.repository = repository;
+		this.delegate = new JdbcLockRegistry(repository);
+	}
+
+	@Override
+	public Lock obtain(Object lockKey) {
+		return delegate.obtain(lockKey);
+	}
+
+	/**
+	 * Try to lock all the keys and return the locks that were taken, keyed by lock key.
+	 * The locks are held by the calling thread. The keys are claimed in the table before
+	 * their local locks are tried.
+	 */
+	public Map<Object, Lock> tryLockAll(Collection<?> lockKeys) {
+		Map<String, Object> paths = new LinkedHashMap<>();
+		for (Object key : lockKeys) {
+			paths.put(UUIDConverter.getUUID(key).toString(), key);
+		}
+		Collection<String> acquired = repository.acquireAll(paths.keySet());
+		Set<String> unused = new HashSet<>(acquired);
+		Map<Object, Lock> locks = new LinkedHashMap<>();
+		try {
+			for (String path : acquired) {
+				Object key = paths.get(path);
+				Lock lock = delegate.obtain(key);
+				if (lock.tryLock()) {
+					locks.put(key, lock);
+					unused.remove(path);
+				}
+			}
+		}
+		finally {
+			repository.forget(unused);
+		}
+		return locks;
+	}
+
+	public void unlockAll(Collection<Lock> locks) {
+		repository.deleteAll(() -> {
+			for (Lock lock : locks) {
+				try {
+					lock.unlock();
+				}
+				catch (Exception e) {
+				}
+			}
+		});
+	}
+
+}
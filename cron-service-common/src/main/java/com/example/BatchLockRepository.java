@@ -0,0 +1,405 @@
+package com.example;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.integration.jdbc.lock.DefaultLockRepository;
+import org.springframework.integration.jdbc.lock.LockRepository;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+/**
+ * A {@link LockRepository} on the same <code>INT_LOCK</code> table as the
+ * {@link DefaultLockRepository}, which can also acquire and release many locks with a
+ * handful of multi-row statements. Every lock this repository holds in the table is
+ * remembered as a lease, and for half the time to live after it was last written an
+ * {@link #acquire(String)} for the same path (reentrant, or the next firing of the same
+ * hook) succeeds without a round trip. By default a lease is also kept when the lock is
+ * released, so the table only sees traffic when a lease needs renewing or another node
+ * is trying to take it. All the leases are renewed together by {@link #renewAll()}, and
+ * expired locks are taken over in place or cleared out by {@link #sweep(int)}, not
+ * deleted on every attempt to acquire one.
+ */
+class BatchLockRepository implements LockRepository {
+
+	private static final int CHUNK_SIZE = 500;
+
+	// Renew our own lock, or take over an expired one
+	private static final String TAKE_QUERY = "UPDATE %sLOCK SET CLIENT_ID=?, CREATED_DATE=? "
+			+ "WHERE REGION=? AND LOCK_KEY=? AND (CLIENT_ID=? OR CREATED_DATE<?)";
+
+	private static final String INSERT_QUERY = "INSERT INTO %sLOCK "
+			+ "(REGION, LOCK_KEY, CLIENT_ID, CREATED_DATE) VALUES (?, ?, ?, ?)";
+
+	private static final String DELETE_QUERY = "DELETE FROM %sLOCK "
+			+ "WHERE REGION=? AND LOCK_KEY=? AND CLIENT_ID=?";
+
+	private static final String COUNT_QUERY = "SELECT COUNT(REGION) FROM %sLOCK "
+			+ "WHERE REGION=? AND LOCK_KEY=? AND CLIENT_ID=? AND CREATED_DATE>=?";
+
+	private static final String DELETE_ALL_QUERY = "DELETE FROM %sLOCK "
+			+ "WHERE REGION=? AND CLIENT_ID=?";
+
+	private static final String RENEW_ALL_QUERY = "UPDATE %sLOCK SET CREATED_DATE=? "
+			+ "WHERE REGION=? AND CLIENT_ID=?";
+
+	private static final String SELECT_OWNED_QUERY = "SELECT LOCK_KEY FROM %sLOCK "
+			+ "WHERE REGION=? AND CLIENT_ID=?";
+
+	private static final String SELECT_EXPIRED_QUERY = "SELECT LOCK_KEY FROM %sLOCK "
+			+ "WHERE REGION=? AND CREATED_DATE<?";
+
+	private static final String DELETE_EXPIRED_BATCH_QUERY = "DELETE FROM %sLOCK "
+			+ "WHERE REGION=:region AND LOCK_KEY IN (:locks) AND CREATED_DATE<:expiry";
+
+	private static final String SELECT_OWNERS_BATCH_QUERY = "SELECT LOCK_KEY, CLIENT_ID, "
+			+ "CREATED_DATE FROM %sLOCK WHERE REGION=:region AND LOCK_KEY IN (:locks)";
+
+	private static final String UPDATE_BATCH_QUERY = "UPDATE %sLOCK SET CREATED_DATE=:now "
+			+ "WHERE REGION=:region AND CLIENT_ID=:id AND LOCK_KEY IN (:locks)";
+
+	private static final String SELECT_OWNED_BATCH_QUERY = "SELECT LOCK_KEY FROM %sLOCK "
+			+ "WHERE REGION=:region AND CLIENT_ID=:id AND LOCK_KEY IN (:locks)";
+
+	private static final String DELETE_BATCH_QUERY = "DELETE FROM %sLOCK "
+			+ "WHERE REGION=:region AND CLIENT_ID=:id AND LOCK_KEY IN (:locks)";
+
+	private final String id = UUID.randomUUID().toString();
+	private final JdbcTemplate template;
+	private final NamedParameterJdbcTemplate named;
+	private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<>();
+	private final ThreadLocal<List<String>> deferred = new ThreadLocal<>();
+
+	private String prefix = DefaultLockRepository.DEFAULT_TABLE_PREFIX;
+	private String region = "DEFAULT";
+	private int ttl = DefaultLockRepository.DEFAULT_TTL;
+	private boolean keepLeases = true;
+
+	public BatchLockRepository(DataSource dataSource) {
+		this.template = new JdbcTemplate(dataSource);
+		this.named = new NamedParameterJdbcTemplate(template);
+	}
+
+	public void setPrefix(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public void setRegion(String region) {
+		this.region = region;
+	}
+
+	public void setTimeToLive(int ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Keep holding a lock in the table after it is released, until the lease runs out
+	 * (default true). Saves a delete per release and an insert per acquire, but a node
+	 * that dies holding leases keeps their hooks from firing until they expire.
+	 */
+	public void setKeepLeases(boolean keepLeases) {
+		this.keepLeases = keepLeases;
+	}
+
+	@Override
+	public boolean acquire(String lock) {
+		if (isLeased(lock)) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		if (template.update(sql(TAKE_QUERY), id, new Date(now), region, lock, id,
+				new Date(now - ttl)) > 0) {
+			leases.put(lock, new Lease(now));
+			return true;
+		}
+		try {
+			if (template.update(sql(INSERT_QUERY), region, lock, id, new Date(now)) > 0) {
+				leases.put(lock, new Lease(now));
+				return true;
+			}
+			return false;
+		}
+		catch (DuplicateKeyException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Acquire as many of the locks as possible and return the ones that are now held by
+	 * this repository.
+	 */
+	public Set<String> acquireAll(Collection<String> locks) {
+		Set<String> acquired = new HashSet<>();
+		List<String> missing = new ArrayList<>();
+		for (String lock : locks) {
+			if (isLeased(lock)) {
+				acquired.add(lock);
+			}
+			else {
+				missing.add(lock);
+			}
+		}
+		long now = System.currentTimeMillis();
+		for (List<String> chunk : chunks(missing)) {
+			for (String lock : acquireChunk(chunk)) {
+				leases.put(lock, new Lease(now));
+				acquired.add(lock);
+			}
+		}
+		return acquired;
+	}
+
+	/**
+	 * Drop the leases from {@link #acquireAll(Collection)} that were not used (unless
+	 * leases are being kept anyway).
+	 */
+	public void forget(Collection<String> locks) {
+		if (keepLeases) {
+			return;
+		}
+		for (String lock : locks) {
+			leases.remove(lock);
+		}
+	}
+
+	/**
+	 * Run the callback, collecting any {@link #delete(String)} calls it makes on this
+	 * thread and then releasing them all together.
+	 */
+	public void deleteAll(Runnable callback) {
+		List<String> locks = new ArrayList<>();
+		deferred.set(locks);
+		try {
+			callback.run();
+		}
+		finally {
+			deferred.remove();
+			for (List<String> chunk : chunks(locks)) {
+				named.update(sql(DELETE_BATCH_QUERY), params(chunk));
+			}
+		}
+	}
+
+	@Override
+	public void delete(String lock) {
+		if (keepLeases) {
+			return;
+		}
+		leases.remove(lock);
+		List<String> locks = deferred.get();
+		if (locks != null) {
+			locks.add(lock);
+			return;
+		}
+		template.update(sql(DELETE_QUERY), region, lock, id);
+	}
+
+	@Override
+	public boolean isAcquired(String lock) {
+		return template.queryForObject(sql(COUNT_QUERY), Integer.class, region, lock, id,
+				new Date(System.currentTimeMillis() - ttl)) == 1;
+	}
+
+	/**
+	 * Release the leases that have not been used for a whole time to live, and renew all
+	 * the others with one statement. Returns the number of locks renewed.
+	 */
+	public int renewAll() {
+		long now = System.currentTimeMillis();
+		List<String> idle = new ArrayList<>();
+		for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+			if (entry.getValue().used < now - ttl
+					&& leases.remove(entry.getKey(), entry.getValue())) {
+				idle.add(entry.getKey());
+			}
+		}
+		for (List<String> chunk : chunks(idle)) {
+			named.update(sql(DELETE_BATCH_QUERY), params(chunk));
+		}
+		int count = template.update(sql(RENEW_ALL_QUERY), new Date(now), region, id);
+		if (count != leases.size()) {
+			// Some expired and were taken over: only keep the ones that are still ours
+			Set<String> owned = new HashSet<>();
+			template.query(sql(SELECT_OWNED_QUERY), (rs) -> {
+				owned.add(rs.getString(1).trim());
+			}, region, id);
+			leases.keySet().retainAll(owned);
+		}
+		for (Lease lease : leases.values()) {
+			lease.renewed = Math.max(lease.renewed, now);
+		}
+		return count;
+	}
+
+	/**
+	 * Delete expired locks (whoever they belonged to), at most this many per statement,
+	 * and return the number deleted.
+	 */
+	public int sweep(int batchSize) {
+		int count = 0;
+		List<String> expired = new ArrayList<>();
+		do {
+			expired.clear();
+			Date expiry = new Date(System.currentTimeMillis() - ttl);
+			template.query(sql(SELECT_EXPIRED_QUERY), (ps) -> {
+				ps.setString(1, region);
+				ps.setTimestamp(2, new Timestamp(expiry.getTime()));
+				ps.setMaxRows(batchSize);
+			}, (rs) -> {
+				expired.add(rs.getString(1).trim());
+			});
+			if (!expired.isEmpty()) {
+				count += named.update(sql(DELETE_EXPIRED_BATCH_QUERY), params(expired));
+			}
+		}
+		while (expired.size() == batchSize);
+		return count;
+	}
+
+	/**
+	 * The number of leases held.
+	 */
+	public int getLeased() {
+		return leases.size();
+	}
+
+	/**
+	 * The number of leases more than half way to expiring, which have to be renewed
+	 * before they can be used again.
+	 */
+	public int getExpiring() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		for (Lease lease : leases.values()) {
+			if (lease.renewed <= now - ttl / 2) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void close() {
+		leases.clear();
+		template.update(sql(DELETE_ALL_QUERY), region, id);
+	}
+
+	private boolean isLeased(String lock) {
+		Lease lease = leases.get(lock);
+		if (lease == null) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		if (lease.renewed > now - ttl / 2) {
+			lease.used = now;
+			return true;
+		}
+		leases.remove(lock, lease);
+		return false;
+	}
+
+	private Set<String> acquireChunk(List<String> locks) {
+		MapSqlParameterSource params = params(locks);
+		Date expiry = (Date) params.getValue("expiry");
+		Map<String, String> owners = new HashMap<>();
+		List<String> expired = new ArrayList<>();
+		named.query(sql(SELECT_OWNERS_BATCH_QUERY), params, (rs) -> {
+			String lock = rs.getString(1).trim();
+			if (rs.getTimestamp(3).before(expiry)) {
+				expired.add(lock);
+			}
+			else {
+				owners.put(lock, rs.getString(2).trim());
+			}
+		});
+		if (!expired.isEmpty()) {
+			// Only the expired ones are up for grabs (and only if still expired)
+			named.update(sql(DELETE_EXPIRED_BATCH_QUERY), params(expired));
+		}
+		Set<String> acquired = new HashSet<>();
+		List<Object[]> inserts = new ArrayList<>();
+		for (String lock : locks) {
+			String owner = owners.get(lock);
+			if (owner == null) {
+				inserts.add(new Object[] { region, lock, id, params.getValue("now") });
+			}
+			else if (owner.equals(id)) {
+				acquired.add(lock);
+			}
+		}
+		if (!acquired.isEmpty()) {
+			named.update(sql(UPDATE_BATCH_QUERY), params(acquired));
+		}
+		if (!inserts.isEmpty()) {
+			try {
+				template.batchUpdate(sql(INSERT_QUERY), inserts);
+				for (Object[] insert : inserts) {
+					acquired.add((String) insert[1]);
+				}
+			}
+			catch (DuplicateKeyException e) {
+				// Lost a race for some of them: find out which ones we got
+				acquired.clear();
+				named.query(sql(SELECT_OWNED_BATCH_QUERY), params, (rs) -> {
+					acquired.add(rs.getString(1).trim());
+				});
+			}
+		}
+		return acquired;
+	}
+
+	private MapSqlParameterSource params(Collection<String> locks) {
+		long now = System.currentTimeMillis();
+		return new MapSqlParameterSource().addValue("region", region).addValue("id", id)
+				.addValue("locks", locks).addValue("now", new Date(now))
+				.addValue("expiry", new Date(now - ttl));
+	}
+
+	private String sql(String query) {
+		return String.format(query, prefix);
+	}
+
+	private static List<List<String>> chunks(Collection<String> locks) {
+		List<List<String>> chunks = new ArrayList<>();
+		List<String> chunk = new ArrayList<>();
+		for (String lock : locks) {
+			chunk.add(lock);
+			if (chunk.size() == CHUNK_SIZE) {
+				chunks.add(chunk);
+				chunk = new ArrayList<>();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	private static class Lease {
+
+		private volatile long renewed;
+
+		private volatile long used;
+
+		Lease(long now) {
+			this.renewed = now;
+			this.used = now;
+		}
+
+	}
+
+}
@@ -0,0 +1,214 @@
+package com.example;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admission control for the firings, ahead of their bodies, so that when the hooks (or
+ * the workers) slow down the backlog stays bounded instead of growing. There is at most
+ * one firing per key (a hook, or a group of hooks) waiting or in flight here: a tick
+ * while one is pending is coalesced into it. And at most a fixed number of firings wait
+ * for a worker: when that queue is full one of them is shed, either the oldest (the
+ * default, so the freshest firings win) or the newest. Both are counted in the metrics.
+ * A firing can also be held back for a fixed delay after each tick (see
+ * {@link HookJitter}), and is only admitted when the delay is over.
+ */
+@Component
+class HookAdmission implements PublicMetrics {
+
+	private final HookMetrics metrics;
+	private final Set<Object> pending = ConcurrentHashMap.newKeySet();
+	private final Set<Ticket> waiting = new LinkedHashSet<>();
+
+	@Value("${hooks.admission.capacity:1000}")
+	private int capacity;
+
+	@Value("${hooks.admission.shed:oldest}")
+	private String shed;
+
+	public HookAdmission(HookMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * A task for the scheduler that fires this body for this key, subject to admission.
+	 */
+	public Firing firing(Object key, Body body) {
+		return new Firing(key, 0L, body);
+	}
+
+	/**
+	 * A task that fires this body for this key this long (milliseconds) after each tick.
+	 */
+	public Firing firing(Object key, long delay, Body body) {
+		return new Firing(key, delay, body);
+	}
+
+	/**
+	 * Mark a firing for this key as in flight, unless there is one already (in which
+	 * case this one is coalesced and the result is false).
+	 */
+	public boolean admit(Object key) {
+		if (!pending.add(key)) {
+			metrics.coalesced();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The firing for this key is over.
+	 */
+	public void release(Object key) {
+		pending.remove(key);
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		int queued;
+		synchronized (waiting) {
+			queued = waiting.size();
+		}
+		return Arrays.<Metric<?>>asList(new Metric<>("hooks.admission.waiting", queued),
+				new Metric<>("hooks.admission.pending", pending.size()));
+	}
+
+	private Ticket enqueue(Firing firing, long instant) {
+		if (!admit(firing.key)) {
+			return null;
+		}
+		Ticket ticket = new Ticket(firing, instant);
+		Ticket shedding = ticket;
+		synchronized (waiting) {
+			if (waiting.size() < capacity || "oldest".equals(shed)) {
+				if (waiting.size() >= capacity) {
+					Iterator<Ticket> oldest = waiting.iterator();
+					shedding = oldest.next();
+					oldest.remove();
+				}
+				else {
+					shedding = null;
+				}
+				waiting.add(ticket);
+			}
+		}
+		if (shedding != null) {
+			metrics.shed();
+			shedding.cancel();
+		}
+		return shedding == ticket ? null : ticket;
+	}
+
+	/**
+	 * What a firing does. It is passed the cron instant it is for (as scheduled, however
+	 * late it runs), and a callback that it has to run when the firing is over (which can
+	 * be after it returns, e.g. when a ping completes).
+	 */
+	interface Body {
+
+		void fire(long instant, Runnable done);
+
+	}
+
+	/**
+	 * A scheduled task subject to admission control: instead of running it directly the
+	 * scheduler asks it to {@link #admit(long)} each firing.
+	 */
+	class Firing implements Runnable {
+
+		private final Object key;
+		private final long delay;
+		private final Body body;
+
+		Firing(Object key, long delay, Body body) {
+			this.key = key;
+			this.delay = delay;
+			this.body = body;
+		}
+
+		/**
+		 * How long after each tick to admit the firing (milliseconds).
+		 */
+		public long getDelay() {
+			return delay;
+		}
+
+		/**
+		 * The runnable for the firing at this instant, or null if it was coalesced or
+		 * shed.
+		 */
+		public Ticket admit(long instant) {
+			return enqueue(this, instant);
+		}
+
+		@Override
+		public void run() {
+			// Not from a scheduler, so the firing is for now
+			Ticket ticket = admit(System.currentTimeMillis());
+			if (ticket != null) {
+				ticket.run();
+			}
+		}
+
+	}
+
+	/**
+	 * One admitted firing, waiting for a worker until it runs (or is cancelled).
+	 */
+	class Ticket implements Runnable {
+
+		private final Firing firing;
+		private final long instant;
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		Ticket(Firing firing, long instant) {
+			this.firing = firing;
+			this.instant = instant;
+		}
+
+		@Override
+		public void run() {
+			synchronized (waiting) {
+				if (!waiting.remove(this)) {
+					// Shed while it was waiting
+					return;
+				}
+			}
+			try {
+				firing.body.fire(instant, this::done);
+			}
+			catch (RuntimeException e) {
+				done();
+				throw e;
+			}
+		}
+
+		/**
+		 * Give up on the firing (e.g. the workers rejected it).
+		 */
+		public void cancel() {
+			synchronized (waiting) {
+				waiting.remove(this);
+			}
+			done();
+		}
+
+		private void done() {
+			if (done.compareAndSet(false, true)) {
+				release(firing.key);
+			}
+		}
+
+	}
+
+}
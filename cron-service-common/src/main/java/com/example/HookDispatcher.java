@@ -0,0 +1,502 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.FailureCallback;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SuccessCallback;
+import org.springframework.web.client.AsyncRequestCallback;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.HttpStatusCodeException;
+
+/**
+ * Sends hook pings without blocking the calling (scheduler) thread. The number of
+ * pings in flight is bounded overall and per hook, and a ping that would exceed
+ * either bound is rejected immediately. Connections are pooled per host and kept
+ * alive between pings, so a hook that fires often does not pay for a new connection
+ * (and TLS handshake) every time. Only hooks that ask for it have their response body
+ * parsed: by default just the status is checked. Every ping carries a fencing token in
+ * a header, which only ever goes up for a given hook, so the hook can reject a ping
+ * with a lower token than one it has already seen. Each host can also be given a rate
+ * (a token bucket, so short bursts are allowed) and a limit on pings in flight: a ping
+ * over the rate is held back for a while if its turn comes soon enough, and otherwise
+ * it is rejected, like one over any of the other limits.
+ */
+@Component
+@ConfigurationProperties("hooks.dispatch")
+class HookDispatcher implements InitializingBean, DisposableBean {
+
+	private static Logger logger = LoggerFactory.getLogger(HookDispatcher.class);
+
+	/**
+	 * Maximum number of pings in flight across all hooks.
+	 */
+	private int maxInFlight = 200;
+
+	/**
+	 * Maximum number of pings in flight for a single hook.
+	 */
+	private int maxInFlightPerHook = 1;
+
+	/**
+	 * Maximum number of pings in flight to a single host (0 for no limit).
+	 */
+	private int maxInFlightPerHost = 0;
+
+	/**
+	 * Maximum rate of pings to a single host, per second (0 for no limit).
+	 */
+	private double hostRate = 0;
+
+	/**
+	 * Number of pings a host can take at once above its rate, after a quiet spell.
+	 */
+	private int hostBurst = 10;
+
+	/**
+	 * Longest a ping is held back to keep within the rate for its host (milliseconds):
+	 * if its turn is further off than that it is rejected.
+	 */
+	private long hostMaxDelay = 1000;
+
+	/**
+	 * Maximum number of open connections to a single host (pings beyond that wait for
+	 * one to be free).
+	 */
+	private int maxConnectionsPerHost = 20;
+
+	/**
+	 * Timeout for opening a connection (milliseconds).
+	 */
+	private int connectTimeout = 2000;
+
+	/**
+	 * Timeout waiting for a response once connected (milliseconds).
+	 */
+	private int readTimeout = 10000;
+
+	/**
+	 * Timeout waiting for a pooled connection to a busy host (milliseconds).
+	 */
+	private int poolTimeout = 1000;
+
+	/**
+	 * How long an idle connection is kept for reuse if the host does not say
+	 * (milliseconds).
+	 */
+	private long keepAlive = 30000;
+
+	/**
+	 * Number of I/O threads (defaults to one per processor).
+	 */
+	private int ioThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Number of bytes of the body kept for hooks that want a prefix of the response.
+	 */
+	private int prefixSize = 1024;
+
+	/**
+	 * Name of the request header carrying the fencing token.
+	 */
+	private String tokenHeader = "X-Fencing-Token";
+
+	private final HookMetrics metrics;
+	private final HookJournal journal;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final ConcurrentMap<Long, Integer> inFlightPerHook = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Integer> inFlightPerHost = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+	private ScheduledExecutorService delayer;
+	private CloseableHttpAsyncClient client;
+	private AsyncRestTemplate restTemplate;
+
+	public HookDispatcher(HookMetrics metrics, HookJournal journal) {
+		this.metrics = metrics;
+		this.journal = journal;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	public int getMaxInFlightPerHook() {
+		return maxInFlightPerHook;
+	}
+
+	public void setMaxInFlightPerHook(int maxInFlightPerHook) {
+		this.maxInFlightPerHook = maxInFlightPerHook;
+	}
+
+	public int getMaxInFlightPerHost() {
+		return maxInFlightPerHost;
+	}
+
+	public void setMaxInFlightPerHost(int maxInFlightPerHost) {
+		this.maxInFlightPerHost = maxInFlightPerHost;
+	}
+
+	public double getHostRate() {
+		return hostRate;
+	}
+
+	public void setHostRate(double hostRate) {
+		this.hostRate = hostRate;
+	}
+
+	public int getHostBurst() {
+		return hostBurst;
+	}
+
+	public void setHostBurst(int hostBurst) {
+		this.hostBurst = hostBurst;
+	}
+
+	public long getHostMaxDelay() {
+		return hostMaxDelay;
+	}
+
+	public void setHostMaxDelay(long hostMaxDelay) {
+		this.hostMaxDelay = hostMaxDelay;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public int getPoolTimeout() {
+		return poolTimeout;
+	}
+
+	public void setPoolTimeout(int poolTimeout) {
+		this.poolTimeout = poolTimeout;
+	}
+
+	public long getKeepAlive() {
+		return keepAlive;
+	}
+
+	public void setKeepAlive(long keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	public void setIoThreads(int ioThreads) {
+		this.ioThreads = ioThreads;
+	}
+
+	public int getPrefixSize() {
+		return prefixSize;
+	}
+
+	public void setPrefixSize(int prefixSize) {
+		this.prefixSize = prefixSize;
+	}
+
+	public String getTokenHeader() {
+		return tokenHeader;
+	}
+
+	public void setTokenHeader(String tokenHeader) {
+		this.tokenHeader = tokenHeader;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		RequestConfig config = RequestConfig.custom().setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(poolTimeout).setSocketTimeout(readTimeout)
+				.build();
+		IOReactorConfig reactor = IOReactorConfig.custom().setIoThreadCount(ioThreads)
+				.setConnectTimeout(connectTimeout).setSoTimeout(readTimeout)
+				.setSoKeepAlive(true).setTcpNoDelay(true).build();
+		client = HttpAsyncClients.custom().setDefaultRequestConfig(config)
+				.setDefaultIOReactorConfig(reactor).setMaxConnTotal(maxInFlight)
+				.setMaxConnPerRoute(Math.min(maxConnectionsPerHost, maxInFlight))
+				.setKeepAliveStrategy((response, context) -> {
+					// Never longer than the host asks for
+					long duration = DefaultConnectionKeepAliveStrategy.INSTANCE
+							.getKeepAliveDuration(response, context);
+					return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+				}).build();
+		HttpComponentsAsyncClientHttpRequestFactory factory = new HttpComponentsAsyncClientHttpRequestFactory(
+				client);
+		factory.afterPropertiesSet();
+		restTemplate = new AsyncRestTemplate(factory);
+		delayer = Executors.newSingleThreadScheduledExecutor(
+				task -> new Thread(task, "hook-dispatch-delay"));
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		delayer.shutdownNow();
+		client.close();
+	}
+
+	public void dispatch(HookTarget hook, long token, SuccessCallback<Object> success,
+			FailureCallback failure) {
+		String host = HookMetrics.host(hook.getUri());
+		acquire(hook.getId(), host);
+		long delay;
+		try {
+			delay = reserve(host);
+		}
+		catch (RuntimeException e) {
+			release(hook.getId(), host);
+			throw e;
+		}
+		if (delay <= 0) {
+			send(hook, host, token, success, failure);
+			return;
+		}
+		metrics.delayed(delay);
+		try {
+			delayer.schedule(() -> {
+				try {
+					send(hook, host, token, success, failure);
+				}
+				catch (RuntimeException e) {
+					// Nobody is waiting for the exception any more
+					failure.onFailure(e);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e) {
+			release(hook.getId(), host);
+			throw e;
+		}
+	}
+
+	private void send(HookTarget hook, String host, long token, SuccessCallback<Object> success,
+			FailureCallback failure) {
+		long started = System.currentTimeMillis();
+		long start = System.nanoTime();
+		ListenableFuture<?> future;
+		try {
+			future = exchange(hook, token);
+		}
+		catch (RuntimeException e) {
+			release(hook.getId(), host);
+			journal.record(hook, token, started, elapsed(start), 0, e.getMessage());
+			throw e;
+		}
+		future.addCallback(result -> {
+			release(hook.getId(), host);
+			long elapsed = elapsed(start);
+			metrics.ping(hook, elapsed, true);
+			ResponseEntity<?> response = (ResponseEntity<?>) result;
+			journal.record(hook, token, started, elapsed, response.getStatusCode().value(),
+					response.getBody() instanceof String ? (String) response.getBody()
+							: null);
+			success.onSuccess(result);
+		}, e -> {
+			release(hook.getId(), host);
+			long elapsed = elapsed(start);
+			metrics.ping(hook, elapsed, false);
+			journal.record(hook, token, started, elapsed,
+					e instanceof HttpStatusCodeException
+							? ((HttpStatusCodeException) e).getRawStatusCode() : 0,
+					e.getMessage());
+			failure.onFailure(e);
+		});
+	}
+
+	private ListenableFuture<?> exchange(HookTarget hook, long token) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(tokenHeader, Long.toString(token));
+		AsyncRequestCallback callback = request -> request.getHeaders().putAll(headers);
+		switch (hook.getResponse()) {
+		case BODY:
+			return restTemplate.exchange(hook.getUri(), hook.getMethod(),
+					new HttpEntity<>(headers), Map.class);
+		case PREFIX:
+			return restTemplate.execute(hook.getUri(), hook.getMethod(), callback,
+					response -> {
+						String prefix = prefix(response);
+						logger.debug("Response from " + hook + ": " + prefix);
+						return new ResponseEntity<>(prefix, response.getHeaders(),
+								response.getStatusCode());
+					});
+		default:
+			// The client still drains the body (so the connection can be reused) but
+			// nothing converts it
+			return restTemplate.execute(hook.getUri(), hook.getMethod(), callback,
+					response -> new ResponseEntity<>(response.getStatusCode()));
+		}
+	}
+
+	private String prefix(ClientHttpResponse response) throws IOException {
+		byte[] bytes = new byte[prefixSize];
+		int count = 0;
+		try (InputStream body = response.getBody()) {
+			int read;
+			while (count < bytes.length
+					&& (read = body.read(bytes, count, bytes.length - count)) > 0) {
+				count += read;
+			}
+		}
+		return new String(bytes, 0, count, StandardCharsets.UTF_8);
+	}
+
+	private void acquire(Long id, String host) {
+		if (inFlight.incrementAndGet() > maxInFlight) {
+			inFlight.decrementAndGet();
+			throw new RejectedExecutionException(
+					"Too many pings in flight (" + maxInFlight + ")");
+		}
+		try {
+			inFlightPerHook.compute(id, (key, count) -> {
+				int next = count == null ? 1 : count + 1;
+				if (next > maxInFlightPerHook) {
+					throw new RejectedExecutionException("Too many pings in flight for hook "
+							+ id + " (" + maxInFlightPerHook + ")");
+				}
+				return next;
+			});
+		}
+		catch (RuntimeException e) {
+			inFlight.decrementAndGet();
+			throw e;
+		}
+		if (maxInFlightPerHost <= 0) {
+			return;
+		}
+		try {
+			inFlightPerHost.compute(host, (key, count) -> {
+				int next = count == null ? 1 : count + 1;
+				if (next > maxInFlightPerHost) {
+					metrics.throttled();
+					throw new RejectedExecutionException("Too many pings in flight to "
+							+ host + " (" + maxInFlightPerHost + ")");
+				}
+				return next;
+			});
+		}
+		catch (RuntimeException e) {
+			inFlightPerHook.computeIfPresent(id,
+					(key, count) -> count > 1 ? count - 1 : null);
+			inFlight.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Take a turn at this host's rate: the result is how long to hold the ping back for
+	 * (milliseconds).
+	 */
+	private long reserve(String host) {
+		if (hostRate <= 0) {
+			return 0L;
+		}
+		long delay = buckets.computeIfAbsent(host, key -> new Bucket(hostBurst))
+				.reserve(hostRate, hostBurst, hostMaxDelay);
+		if (delay < 0) {
+			metrics.throttled();
+			throw new RejectedExecutionException(
+					"Too many pings to " + host + " (" + hostRate + "/s)");
+		}
+		return delay;
+	}
+
+	private static long elapsed(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	private void release(Long id, String host) {
+		if (maxInFlightPerHost > 0) {
+			inFlightPerHost.computeIfPresent(host,
+					(key, count) -> count > 1 ? count - 1 : null);
+		}
+		inFlightPerHook.computeIfPresent(id, (key, count) -> count > 1 ? count - 1 : null);
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * A token bucket for one host that hands out tokens ahead of time: a ping that finds
+	 * it empty takes the next token to come and waits for it, so the pings keep to the
+	 * rate instead of being refused as soon as there is a burst.
+	 */
+	static class Bucket {
+
+		private double tokens;
+		private long last = System.nanoTime();
+
+		Bucket(int burst) {
+			this.tokens = burst;
+		}
+
+		/**
+		 * How long to wait for the next token (milliseconds), or -1 if that is longer
+		 * than the maximum (and then nothing is taken).
+		 */
+		synchronized long reserve(double rate, int burst, long maxDelay) {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+			last = now;
+			long delay = tokens >= 1 ? 0L : (long) Math.ceil((1 - tokens) * 1000 / rate);
+			if (delay > maxDelay) {
+				return -1L;
+			}
+			tokens--;
+			return delay;
+		}
+
+	}
+
+}
@@ -0,0 +1,192 @@
+package com.example;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The workers that run the firings a scheduler's timer hands off, in one of three modes:
+ * "fixed", a fixed number of threads with an unbounded queue; "elastic", a pool that
+ * starts a new thread (up to a maximum) only when none is idle, lets it go again when it
+ * has been idle for a minute, and queues (up to a limit) when it is at the maximum; or
+ * "virtual", a new virtual thread for every firing, with a limit on how many are in
+ * flight (Java 21 and later, otherwise a small elastic pool). Each mode counts its queued
+ * and running firings, so they can all report their saturation the same way. A firing
+ * that cannot be taken is rejected rather than blocking the timer.
+ */
+class HookExecutor implements Executor {
+
+	private static Logger logger = LoggerFactory.getLogger(HookExecutor.class);
+
+	private static final long KEEP_ALIVE = 60L;
+
+	private static final int FALLBACK_THREADS = 200;
+
+	private final ExecutorService delegate;
+	private final int capacity;
+	private final int limit;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+
+	private HookExecutor(ExecutorService delegate, int capacity, int limit) {
+		this.delegate = delegate;
+		this.capacity = capacity;
+		this.limit = limit;
+	}
+
+	/**
+	 * Workers in this mode, with this many threads if fixed, at most this many threads
+	 * (or firings in flight if virtual) otherwise, and this much room in the queue if
+	 * elastic.
+	 */
+	public static HookExecutor create(String mode, int threads, int maxThreads,
+			int queueCapacity) {
+		switch (mode) {
+		case "fixed":
+			return fixed(threads);
+		case "elastic":
+			return elastic(maxThreads, queueCapacity);
+		case "virtual":
+			return virtual(maxThreads, queueCapacity);
+		default:
+			throw new IllegalArgumentException("Unknown executor: " + mode);
+		}
+	}
+
+	public static HookExecutor fixed(int threads) {
+		return new HookExecutor(new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), factory()), threads, 0);
+	}
+
+	public static HookExecutor elastic(int maxThreads, int queueCapacity) {
+		ElasticQueue queue = new ElasticQueue(queueCapacity);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE,
+				TimeUnit.SECONDS, queue, factory(), (task, executor) -> {
+					// Lost a race for the last thread: the queue is the only option left
+					if (executor.isShutdown() || !queue.force(task)) {
+						throw new RejectedExecutionException("Workers saturated");
+					}
+				});
+		queue.pool = pool;
+		return new HookExecutor(pool, maxThreads, 0);
+	}
+
+	public static HookExecutor virtual(int maxThreads, int queueCapacity) {
+		try {
+			// Still compiled for Java 8, so only reflection can reach the virtual threads
+			ExecutorService delegate = (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			return new HookExecutor(delegate, maxThreads, maxThreads);
+		}
+		catch (ReflectiveOperationException e) {
+			// A limit meant for virtual threads is far too many platform threads
+			int threads = Math.min(maxThreads, FALLBACK_THREADS);
+			logger.warn("No virtual threads in Java " + System.getProperty("java.version")
+					+ ": using an elastic pool of up to " + threads + " threads");
+			return elastic(threads, queueCapacity);
+		}
+	}
+
+	private static ThreadFactory factory() {
+		AtomicInteger count = new AtomicInteger();
+		return task -> new Thread(task, "hook-worker-" + count.incrementAndGet());
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		if (limit > 0 && queued.get() + active.get() >= limit) {
+			throw new RejectedExecutionException("Too many firings in flight");
+		}
+		queued.incrementAndGet();
+		try {
+			delegate.execute(() -> {
+				queued.decrementAndGet();
+				active.incrementAndGet();
+				try {
+					task.run();
+				}
+				finally {
+					active.decrementAndGet();
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			queued.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Firings waiting for a worker.
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * Firings running now.
+	 */
+	public int getActive() {
+		return active.get();
+	}
+
+	/**
+	 * Threads started (for virtual threads, one per running firing).
+	 */
+	public int getThreads() {
+		if (delegate instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) delegate).getPoolSize();
+		}
+		return active.get();
+	}
+
+	/**
+	 * How much of the capacity (threads, or firings in flight) is in use, as a
+	 * percentage.
+	 */
+	public int getSaturation() {
+		return (int) (100L * active.get() / capacity);
+	}
+
+	public void shutdown() {
+		delegate.shutdown();
+	}
+
+	/**
+	 * Refuses a task while the pool could start a thread for it instead, so the pool
+	 * grows before anything waits.
+	 */
+	private static class ElasticQueue extends LinkedBlockingQueue<Runnable> {
+
+		private volatile ThreadPoolExecutor pool;
+
+		ElasticQueue(int capacity) {
+			super(capacity);
+		}
+
+		@Override
+		public boolean offer(Runnable task) {
+			ThreadPoolExecutor pool = this.pool;
+			if (pool.getPoolSize() < pool.getMaximumPoolSize()
+					&& pool.getActiveCount() + size() >= pool.getPoolSize()) {
+				return false;
+			}
+			return super.offer(task);
+		}
+
+		boolean force(Runnable task) {
+			return super.offer(task);
+		}
+
+	}
+
+}
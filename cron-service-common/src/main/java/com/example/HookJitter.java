@@ -0,0 +1,45 @@
+package com.example;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Spreads the firings of hooks that share a schedule over a window after each cron
+ * instant, instead of all at the same millisecond. The offset for a hook is a hash of
+ * its id, so it is the same on every node and after a restart, and the instant a firing
+ * belongs to does not change (the offset is subtracted again wherever it matters).
+ */
+@Component
+class HookJitter {
+
+	@Value("${hooks.jitter.window:0}")
+	private long window;
+
+	/**
+	 * How long after its cron instant this hook fires (milliseconds, less than the
+	 * window).
+	 */
+	public long offset(long id) {
+		if (window <= 0) {
+			return 0L;
+		}
+		return Long.remainderUnsigned(mix(id), window);
+	}
+
+	/**
+	 * The offset rounded down to one of this many steps across the window, so that hooks
+	 * in the same step can still fire together.
+	 */
+	public long offset(long id, int steps) {
+		long step = Math.max(1L, window / steps);
+		return offset(id) / step * step;
+	}
+
+	private static long mix(long value) {
+		// The SplitMix64 finalizer: consecutive ids land far apart
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+		return value ^ (value >>> 31);
+	}
+
+}
@@ -0,0 +1,176 @@
+package com.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Append-only history of the firings, one row per ping in the firing table. Records are
+ * queued and inserted as a JDBC batch on a background thread, so the firing path never
+ * waits for the database: if the queue is full the record is dropped (and counted)
+ * instead. Rows older than the retention are deleted periodically, a batch at a time
+ * using the index on the start time, so the compaction never holds a long lock on the
+ * table.
+ */
+@Component
+class HookJournal implements InitializingBean, DisposableBean {
+
+	private static Logger logger = LoggerFactory.getLogger(HookJournal.class);
+
+	private static final String INSERT_QUERY = "INSERT INTO firing "
+			+ "(hook, token, node, started, duration, status, detail) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+	private static final String SELECT_EXPIRED_QUERY = "SELECT id FROM firing "
+			+ "WHERE started<? ORDER BY started";
+
+	private static final String DELETE_EXPIRED_BATCH_QUERY = "DELETE FROM firing "
+			+ "WHERE id IN (:ids)";
+
+	private static final int DETAIL_LENGTH = 255;
+
+	private final JdbcTemplate template;
+	private final NamedParameterJdbcTemplate named;
+	private final TransactionTemplate transaction;
+	private final HookMetrics metrics;
+	private final ScheduledExecutorService flusher = Executors
+			.newSingleThreadScheduledExecutor(r -> new Thread(r, "hook-journal"));
+	private BlockingQueue<Object[]> queue;
+
+	@Value("${hooks.journal.node:}")
+	private String node;
+
+	@Value("${hooks.journal.interval:1000}")
+	private long interval;
+
+	@Value("${hooks.journal.batch-size:500}")
+	private int batchSize;
+
+	@Value("${hooks.journal.capacity:10000}")
+	private int capacity;
+
+	@Value("${hooks.journal.retention:604800000}")
+	private long retention;
+
+	@Value("${hooks.journal.compact-interval:600000}")
+	private long compactInterval;
+
+	@Value("${hooks.journal.compact-batch-size:1000}")
+	private int compactBatchSize;
+
+	public HookJournal(JdbcTemplate template,
+			PlatformTransactionManager transactionManager, HookMetrics metrics) {
+		this.template = template;
+		this.named = new NamedParameterJdbcTemplate(template);
+		this.transaction = new TransactionTemplate(transactionManager);
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if (node.isEmpty()) {
+			// pid@host
+			node = ManagementFactory.getRuntimeMXBean().getName();
+		}
+		queue = new ArrayBlockingQueue<>(capacity);
+		flusher.scheduleWithFixedDelay(this::flush, interval, interval,
+				TimeUnit.MILLISECONDS);
+		flusher.scheduleWithFixedDelay(this::compact, compactInterval, compactInterval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		flusher.shutdown();
+		flush();
+	}
+
+	/**
+	 * A ping for this hook (with this fencing token) started at this time (epoch
+	 * millis) and finished after this long, with this status (0 if there was no
+	 * response) and optional detail (the start of the body, or the error).
+	 */
+	public void record(HookTarget hook, long token, long started, long duration, int status,
+			String detail) {
+		if (detail != null && detail.length() > DETAIL_LENGTH) {
+			detail = detail.substring(0, DETAIL_LENGTH);
+		}
+		Object[] row = { hook.getId(), token, node, started, duration, status, detail };
+		if (!queue.offer(row)) {
+			metrics.unjournaled();
+			return;
+		}
+		if (queue.size() >= batchSize) {
+			flusher.execute(this::flush);
+		}
+	}
+
+	private synchronized void flush() {
+		List<Object[]> batch = new ArrayList<>();
+		while (queue.drainTo(batch, batchSize) > 0) {
+			try {
+				transaction.execute(status -> template.batchUpdate(INSERT_QUERY, batch));
+			}
+			catch (Exception e) {
+				// Don't care: it's only history
+				logger.info("Failed to journal " + batch.size() + " firings: "
+						+ e.getMessage());
+			}
+			batch.clear();
+		}
+	}
+
+	private void compact() {
+		try {
+			int count = compact(System.currentTimeMillis() - retention);
+			if (count > 0) {
+				logger.info("Removed " + count + " firings from the journal");
+			}
+		}
+		catch (Exception e) {
+			logger.info("Failed to compact the journal: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Delete the firings that started before this time (epoch millis), in batches of at
+	 * most the compaction batch size, and return how many there were.
+	 */
+	int compact(long before) {
+		int count = 0;
+		List<Long> expired = new ArrayList<>();
+		do {
+			expired.clear();
+			template.query(SELECT_EXPIRED_QUERY, (ps) -> {
+				ps.setLong(1, before);
+				ps.setMaxRows(compactBatchSize);
+			}, (rs) -> {
+				expired.add(rs.getLong(1));
+			});
+			if (!expired.isEmpty()) {
+				count += named.update(DELETE_EXPIRED_BATCH_QUERY,
+						Collections.singletonMap("ids", expired));
+			}
+		}
+		while (expired.size() == compactBatchSize);
+		return count;
+	}
+
+}
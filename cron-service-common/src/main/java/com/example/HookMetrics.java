@@ -0,0 +1,178 @@
+package com.example;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+/**
+ * Metrics for the firing path, exported through the Actuator. With Dropwizard Metrics
+ * on the classpath the "timer." and "histogram." names are recorded as sampled
+ * distributions and the "meter." names as rates, all cheap enough to update on every
+ * firing. Latency per hook (rather than per host) is off by default because it costs
+ * a timer for every hook, and only the first hosts seen get a timer of their own (the
+ * rest share one called "other"). Shared by all the modules, so each one only records
+ * the metrics for the parts it has (locks, leases, conflicts or retries).
+ */
+@Component
+class HookMetrics {
+
+	private final CounterService counters;
+	private final GaugeService gauges;
+
+	@Value("${hooks.metrics.per-hook:false}")
+	private boolean perHook;
+
+	@Value("${hooks.metrics.max-hosts:100}")
+	private int maxHosts;
+
+	private final Set<String> hosts = ConcurrentHashMap.newKeySet();
+
+	public HookMetrics(CounterService counters, GaugeService gauges) {
+		this.counters = counters;
+		this.gauges = gauges;
+	}
+
+	/**
+	 * A firing started this long after its planned instant.
+	 */
+	public void lag(long millis) {
+		gauges.submit("histogram.hooks.schedule.lag", millis);
+	}
+
+	/**
+	 * An attempt to take locks for a firing took this long and took some of them. The
+	 * counts are recorded once per batch, not once per lock.
+	 */
+	public void locked(long millis, int acquired, int missed) {
+		gauges.submit("timer.hooks.lock.acquire", millis);
+		gauges.submit("histogram.hooks.lock.acquired", acquired);
+		gauges.submit("histogram.hooks.lock.missed", missed);
+	}
+
+	/**
+	 * All the lock leases held here were renewed (this many) in one statement that took
+	 * this long.
+	 */
+	public void renewed(long millis, int count) {
+		gauges.submit("timer.hooks.lease.renew", millis);
+		gauges.submit("histogram.hooks.lease.renewed", count);
+	}
+
+	/**
+	 * This many expired locks were swept out of the lock table.
+	 */
+	public void swept(int count) {
+		gauges.submit("histogram.hooks.lease.swept", count);
+	}
+
+	/**
+	 * A firing lost an optimistic check against another node.
+	 */
+	public void conflict() {
+		counters.increment("meter.hooks.conflict");
+	}
+
+	/**
+	 * A ping completed (or failed) after this long.
+	 */
+	public void ping(HookTarget hook, long millis, boolean success) {
+		gauges.submit("timer.hooks.ping.host." + bounded(host(hook.getUri())), millis);
+		if (perHook) {
+			gauges.submit("timer.hooks.ping.hook." + hook.getId(), millis);
+		}
+		if (!success) {
+			counters.increment("meter.hooks.ping.failed");
+		}
+	}
+
+	/**
+	 * A firing was not run because the workers were saturated.
+	 */
+	public void rejected() {
+		counters.increment("meter.hooks.scheduler.rejected");
+	}
+
+	/**
+	 * A firing was coalesced into one for the same hook that was still pending.
+	 */
+	public void coalesced() {
+		counters.increment("meter.hooks.admission.coalesced");
+	}
+
+	/**
+	 * A firing was shed because too many were waiting for a worker.
+	 */
+	public void shed() {
+		counters.increment("meter.hooks.admission.shed");
+	}
+
+	/**
+	 * A failed firing was retried.
+	 */
+	public void retried() {
+		counters.increment("meter.hooks.retry.attempted");
+	}
+
+	/**
+	 * A firing failed with no retries left.
+	 */
+	public void exhausted() {
+		counters.increment("meter.hooks.retry.exhausted");
+	}
+
+	/**
+	 * A ping was held back this long to keep within the rate for its host.
+	 */
+	public void delayed(long millis) {
+		gauges.submit("histogram.hooks.dispatch.delay", millis);
+	}
+
+	/**
+	 * A ping was rejected by the rate or concurrency limit for its host.
+	 */
+	public void throttled() {
+		counters.increment("meter.hooks.dispatch.throttled");
+	}
+
+	/**
+	 * A write-behind update was dropped after failing too many times.
+	 */
+	public void unwritten() {
+		counters.increment("meter.hooks.writer.dropped");
+	}
+
+	/**
+	 * A firing was not journaled because the journal could not keep up.
+	 */
+	public void unjournaled() {
+		counters.increment("meter.hooks.journal.dropped");
+	}
+
+	private String bounded(String host) {
+		if (hosts.contains(host)) {
+			return host;
+		}
+		// A race can let a few more in, but not an unbounded number
+		if (hosts.size() < maxHosts) {
+			hosts.add(host);
+			return host;
+		}
+		return "other";
+	}
+
+	static String host(String uri) {
+		try {
+			String host = URI.create(uri).getHost();
+			return host == null ? "unknown" : host;
+		}
+		catch (IllegalArgumentException e) {
+			return "unknown";
+		}
+	}
+
+}
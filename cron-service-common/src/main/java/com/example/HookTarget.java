@@ -0,0 +1,38 @@
+package com.example;
+
+import org.springframework.http.HttpMethod;
+
+/**
+ * What the dispatcher, the journal and the metrics need to know about a hook. Each
+ * module has its own Hook entity (with the state its strategy needs), and they all
+ * implement this.
+ */
+interface HookTarget {
+
+	Long getId();
+
+	String getUri();
+
+	HttpMethod getMethod();
+
+	Response getResponse();
+
+	/**
+	 * How much of the response to a ping to read.
+	 */
+	enum Response {
+		/**
+		 * Check the status and discard the body.
+		 */
+		STATUS,
+		/**
+		 * Keep the start of the body (up to a fixed size) for diagnostics.
+		 */
+		PREFIX,
+		/**
+		 * Parse the whole body as JSON.
+		 */
+		BODY;
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.example;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Keeps the leases in a {@link BatchLockRepository} alive with one statement per
+ * interval, however many there are, and sweeps expired locks out of the table in
+ * bounded batches (using the index on the creation date). The renewal interval has to
+ * be well inside half the time to live, or the leases stop being usable from memory.
+ */
+class LockLeases implements InitializingBean, DisposableBean, PublicMetrics {
+
+	private static Logger logger = LoggerFactory.getLogger(LockLeases.class);
+
+	private final BatchLockRepository repository;
+	private final HookMetrics metrics;
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(r -> new Thread(r, "lock-leases"));
+
+	@Value("${hooks.leases.renew-interval:2000}")
+	private long renewInterval;
+
+	@Value("${hooks.leases.sweep-interval:30000}")
+	private long sweepInterval;
+
+	@Value("${hooks.leases.sweep-batch-size:500}")
+	private int sweepBatchSize;
+
+	public LockLeases(BatchLockRepository repository, HookMetrics metrics) {
+		this.repository = repository;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		executor.scheduleWithFixedDelay(this::renew, renewInterval, renewInterval,
+				TimeUnit.MILLISECONDS);
+		executor.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		return Arrays.<Metric<?>>asList(
+				new Metric<>("hooks.leases.held", repository.getLeased()),
+				new Metric<>("hooks.leases.expiring", repository.getExpiring()));
+	}
+
+	private void renew() {
+		long start = System.nanoTime();
+		try {
+			int count = repository.renewAll();
+			metrics.renewed(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+					count);
+		}
+		catch (Exception e) {
+			// The leases will be renewed one by one as they are used
+			logger.info("Failed to renew leases: " + e.getMessage());
+		}
+	}
+
+	private void sweep() {
+		try {
+			int count = repository.sweep(sweepBatchSize);
+			if (count > 0) {
+				metrics.swept(count);
+				logger.info("Swept " + count + " expired locks");
+			}
+		}
+		catch (Exception e) {
+			logger.info("Failed to sweep locks: " + e.getMessage());
+		}
+	}
+
+}
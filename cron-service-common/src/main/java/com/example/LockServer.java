@@ -0,0 +1,366 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small lock server: leases on named locks, with a time to live, held by a client
+ * connection. It runs on one thread with non-blocking sockets, and can be embedded in
+ * an application or run on its own (see {@link #main(String[])}).
+ * <p>
+ * The protocol is one line per request, <code>&lt;id&gt; &lt;op&gt; &lt;key&gt;
+ * &lt;ttl&gt;</code>, where op is ACQUIRE, RENEW or RELEASE, and the reply is
+ * <code>&lt;id&gt; OK</code> or <code>&lt;id&gt; NO</code>. A client can send any
+ * number of requests without waiting for the replies, which come back in order. When a
+ * lease expires the server sends <code>0 LOST &lt;key&gt;</code> to the client that held
+ * it, and when a client disconnects all its leases are released. The time to live is
+ * capped at the server's maximum, and a client that lets more than
+ * {@link #setMaxPending(int) a limit} of replies pile up without reading them is
+ * disconnected.
+ * <p>
+ * There is no authentication, so by default the server only listens on the loopback
+ * interface: bind it to another address only on a network where every client is
+ * trusted.
+ */
+public class LockServer implements Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(LockServer.class);
+
+	private static final long TICK = 50L;
+
+	private static final String LOOPBACK = "127.0.0.1";
+
+	private static final long DEFAULT_TTL = 10000L;
+
+	private final String host;
+	private final int port;
+	private final long maxTtl;
+	private final Map<String, Lease> leases = new HashMap<>();
+	private final List<Session> overflowed = new ArrayList<>();
+	private int maxPending = 1024 * 1024;
+	private Selector selector;
+	private ServerSocketChannel server;
+	private Thread thread;
+	private volatile boolean running = false;
+
+	/**
+	 * A server on this port of the loopback interface.
+	 */
+	public LockServer(int port) {
+		this(LOOPBACK, port, DEFAULT_TTL);
+	}
+
+	/**
+	 * A server on this port of the interface with this address (0.0.0.0 for all), that
+	 * grants leases for at most this long (milliseconds).
+	 */
+	public LockServer(String host, int port, long maxTtl) {
+		this.host = host;
+		this.port = port;
+		this.maxTtl = maxTtl;
+	}
+
+	/**
+	 * Arguments: the port (default 7077), the address to bind to (default the loopback
+	 * interface) and the longest time to live of a lease (default 10000ms).
+	 */
+	public static void main(String[] args) throws Exception {
+		LockServer server = new LockServer(args.length > 1 ? args[1] : LOOPBACK,
+				args.length > 0 ? Integer.parseInt(args[0]) : 7077,
+				args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_TTL);
+		server.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+		server.thread.join();
+	}
+
+	/**
+	 * The most bytes of replies that can be waiting for a client to read them before it
+	 * is disconnected (default 1MB).
+	 */
+	public void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(host, port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+		thread = new Thread(this::run, "lock-server");
+		thread.start();
+		logger.info("Lock server listening on " + host + ":" + getPort());
+	}
+
+	/**
+	 * The port the server is listening on (useful if it was started with port 0).
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join(1000L);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		try {
+			while (running) {
+				selector.select(TICK);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (key.isAcceptable()) {
+							accept();
+						}
+						else {
+							Session session = (Session) key.attachment();
+							if (key.isReadable()) {
+								session.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								session.flush();
+							}
+						}
+					}
+					catch (IOException | RuntimeException e) {
+						if (key.attachment() != null) {
+							((Session) key.attachment()).close();
+						}
+					}
+				}
+				expire();
+				for (Session session : overflowed) {
+					logger.info("Disconnecting a client that is not reading its replies");
+					session.close();
+				}
+				overflowed.clear();
+			}
+		}
+		catch (IOException e) {
+			logger.error("Lock server failed", e);
+		}
+		finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() != null) {
+					((Session) key.attachment()).close();
+				}
+			}
+			try {
+				server.close();
+				selector.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Session session = new Session(channel);
+		session.key = channel.register(selector, SelectionKey.OP_READ, session);
+	}
+
+	private String handle(Session session, String line) {
+		String[] parts = line.trim().split(" ");
+		if (parts.length < 3) {
+			return "0 ERR " + line;
+		}
+		String id = parts[0];
+		String key = parts[2];
+		long ttl = Math.max(0L,
+				Math.min(maxTtl, parts.length > 3 ? Long.parseLong(parts[3]) : 0L));
+		long now = System.currentTimeMillis();
+		Lease lease = leases.get(key);
+		if (lease != null && lease.expires <= now) {
+			expire(key, lease);
+			lease = null;
+		}
+		switch (parts[1]) {
+		case "ACQUIRE":
+			if (lease == null) {
+				leases.put(key, new Lease(session, now + ttl));
+				session.keys.add(key);
+				return id + " OK";
+			}
+			// fall through: acquiring a lease we already hold renews it
+		case "RENEW":
+			if (lease != null && lease.owner == session) {
+				lease.expires = now + ttl;
+				return id + " OK";
+			}
+			return id + " NO";
+		case "RELEASE":
+			if (lease != null && lease.owner == session) {
+				leases.remove(key);
+				session.keys.remove(key);
+				return id + " OK";
+			}
+			return id + " NO";
+		default:
+			return id + " ERR " + parts[1];
+		}
+	}
+
+	private void expire() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Lease>> entries = leases.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Lease> entry = entries.next();
+			if (entry.getValue().expires <= now) {
+				entries.remove();
+				notifyLost(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private void expire(String key, Lease lease) {
+		leases.remove(key);
+		notifyLost(key, lease);
+	}
+
+	private void notifyLost(String key, Lease lease) {
+		lease.owner.keys.remove(key);
+		lease.owner.send("0 LOST " + key);
+	}
+
+	private static class Lease {
+
+		private final Session owner;
+
+		private long expires;
+
+		Lease(Session owner, long expires) {
+			this.owner = owner;
+			this.expires = expires;
+		}
+
+	}
+
+	private class Session {
+
+		private final SocketChannel channel;
+		private final Set<String> keys = new HashSet<>();
+		private final ByteBuffer in = ByteBuffer.allocate(8192);
+		private ByteBuffer out = ByteBuffer.allocate(8192);
+		private SelectionKey key;
+		private boolean overflow;
+
+		Session(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void read() throws IOException {
+			if (channel.read(in) < 0) {
+				close();
+				return;
+			}
+			in.flip();
+			int start = in.position();
+			for (int i = start; i < in.limit(); i++) {
+				if (in.get(i) == '\n') {
+					byte[] bytes = new byte[i - start];
+					in.position(start);
+					in.get(bytes);
+					in.get();
+					send(handle(this, new String(bytes, StandardCharsets.US_ASCII)));
+					start = i + 1;
+				}
+			}
+			in.position(start);
+			in.compact();
+			if (!in.hasRemaining()) {
+				throw new IOException("Request too long");
+			}
+			flush();
+		}
+
+		void send(String line) {
+			if (overflow) {
+				return;
+			}
+			byte[] bytes = (line + "\n").getBytes(StandardCharsets.US_ASCII);
+			if (out.position() + bytes.length > maxPending) {
+				// Closed after this pass of the selector, not while its leases are in use
+				overflow = true;
+				overflowed.add(this);
+				return;
+			}
+			if (out.remaining() < bytes.length) {
+				ByteBuffer bigger = ByteBuffer
+						.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+				out.flip();
+				bigger.put(out);
+				out = bigger;
+			}
+			out.put(bytes);
+			if (key.isValid()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		void flush() throws IOException {
+			out.flip();
+			channel.write(out);
+			out.compact();
+			if (key.isValid()) {
+				key.interestOps(out.position() > 0
+						? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			}
+		}
+
+		void close() {
+			for (String lock : keys) {
+				leases.remove(lock);
+			}
+			keys.clear();
+			key.cancel();
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,409 @@
+package com.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.integration.support.locks.LockRegistry;
+import org.springframework.integration.util.UUIDConverter;
+
+/**
+ * A {@link LockRegistry} backed by a {@link LockServer}. All the locks share one
+ * connection, and requests are pipelined on it, so a batch of keys costs one round trip
+ * (see {@link #tryLockAll(Collection)}). Like the JDBC locks there are two tiers: a lock
+ * is taken locally first, and then leased from the server, and a reentrant lock only goes
+ * back to the server if the lease was lost. The leases that are held are renewed together
+ * three times per time to live, and are lost if the server says so (or the connection
+ * drops, since the server releases everything a connection held when it closes).
+ */
+class LockServerRegistry implements LockRegistry, InitializingBean, DisposableBean {
+
+	private static Logger logger = LoggerFactory.getLogger(LockServerRegistry.class);
+
+	private static final long RETRY = 100L;
+
+	private final String host;
+	private final int port;
+	private final long ttl;
+	private final ConcurrentMap<String, ServerLock> locks = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Long, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+	private final AtomicLong ids = new AtomicLong();
+	private final ScheduledExecutorService renewer = Executors
+			.newSingleThreadScheduledExecutor(r -> new Thread(r, "lock-renewer"));
+	private volatile Socket socket;
+	private long timeout = 1000L;
+
+	/**
+	 * Leases from the server at this address (host:port), with this time to live.
+	 */
+	public LockServerRegistry(String address, long ttl) {
+		int colon = address.lastIndexOf(':');
+		this.host = address.substring(0, colon);
+		this.port = Integer.parseInt(address.substring(colon + 1));
+		this.ttl = ttl;
+	}
+
+	/**
+	 * How long to wait for a reply from the server (default 1000ms).
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		long interval = ttl / 3;
+		renewer.scheduleWithFixedDelay(this::renew, interval, interval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		renewer.shutdownNow();
+		Socket socket = this.socket;
+		if (socket != null) {
+			disconnect(socket);
+		}
+	}
+
+	@Override
+	public Lock obtain(Object lockKey) {
+		String path = UUIDConverter.getUUID(lockKey).toString();
+		return locks.computeIfAbsent(path, ServerLock::new);
+	}
+
+	/**
+	 * Try to lock all the keys and return the locks that were taken, keyed by lock key.
+	 * The locks are held by the calling thread.
+	 */
+	public Map<Object, Lock> tryLockAll(Collection<?> lockKeys) {
+		Map<Object, Lock> held = new LinkedHashMap<>();
+		Map<String, Object> keys = new LinkedHashMap<>();
+		for (Object key : lockKeys) {
+			ServerLock lock = (ServerLock) obtain(key);
+			if (!lock.delegate.tryLock()) {
+				continue;
+			}
+			if (lock.lease.get() != 0) {
+				held.put(key, lock);
+				continue;
+			}
+			keys.put(lock.path, key);
+		}
+		for (Request request : send("ACQUIRE", keys.keySet())) {
+			ServerLock lock = locks.get(request.path);
+			boolean leased = false;
+			try {
+				leased = await(request);
+			}
+			catch (CannotAcquireLockException e) {
+				logger.info("Missed: " + e.getMessage());
+			}
+			if (leased) {
+				lock.lease.set(request.id);
+				held.put(keys.get(request.path), lock);
+			}
+			else {
+				lock.delegate.unlock();
+			}
+		}
+		return held;
+	}
+
+	private void renew() {
+		List<String> paths = new ArrayList<>();
+		Map<String, Long> leases = new LinkedHashMap<>();
+		for (ServerLock lock : locks.values()) {
+			long lease = lock.lease.get();
+			if (lease != 0) {
+				paths.add(lock.path);
+				leases.put(lock.path, lease);
+			}
+		}
+		for (Request request : send("RENEW", paths)) {
+			try {
+				if (!await(request)) {
+					lost(request.path, leases.get(request.path));
+				}
+			}
+			catch (CannotAcquireLockException e) {
+				// If the connection is gone all the leases are lost anyway
+				logger.info("Failed to renew lease: " + e.getMessage());
+			}
+		}
+	}
+
+	private void lost(String path, long lease) {
+		ServerLock lock = locks.get(path);
+		if (lock != null && lock.lease.compareAndSet(lease, 0L)) {
+			logger.info("Lost lease on " + path);
+		}
+	}
+
+	/**
+	 * Send one request per path in a single write, without waiting for the replies.
+	 */
+	private List<Request> send(String op, Collection<String> paths) {
+		if (paths.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<Request> requests = new ArrayList<>();
+		StringBuilder lines = new StringBuilder();
+		for (String path : paths) {
+			Request request = new Request(ids.incrementAndGet(), path);
+			pending.put(request.id, request.reply);
+			requests.add(request);
+			lines.append(request.id).append(' ').append(op).append(' ').append(path)
+					.append(' ').append(ttl).append('\n');
+		}
+		Socket socket = null;
+		try {
+			socket = connect();
+			OutputStream output = socket.getOutputStream();
+			synchronized (output) {
+				output.write(lines.toString().getBytes(StandardCharsets.US_ASCII));
+				output.flush();
+			}
+		}
+		catch (IOException e) {
+			for (Request request : requests) {
+				pending.remove(request.id);
+				request.reply.completeExceptionally(e);
+			}
+			if (socket != null) {
+				disconnect(socket);
+			}
+		}
+		return requests;
+	}
+
+	private boolean await(Request request) {
+		try {
+			return request.reply.get(timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CannotAcquireLockException("Interrupted waiting for lock server", e);
+		}
+		catch (ExecutionException | TimeoutException e) {
+			pending.remove(request.id);
+			throw new CannotAcquireLockException("No reply from lock server at " + host
+					+ ":" + port, e);
+		}
+	}
+
+	private synchronized Socket connect() throws IOException {
+		if (socket == null) {
+			Socket socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			this.socket = socket;
+			Thread reader = new Thread(() -> read(socket), "lock-client");
+			reader.setDaemon(true);
+			reader.start();
+			logger.info("Connected to lock server at " + host + ":" + port);
+		}
+		return socket;
+	}
+
+	private void read(Socket socket) {
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ");
+				if ("LOST".equals(parts[1])) {
+					ServerLock lock = locks.get(parts[2]);
+					if (lock != null) {
+						lost(parts[2], lock.lease.get());
+					}
+					continue;
+				}
+				CompletableFuture<Boolean> reply = pending.remove(Long.parseLong(parts[0]));
+				if (reply != null) {
+					reply.complete("OK".equals(parts[1]));
+				}
+			}
+		}
+		catch (IOException e) {
+			// Closed (by us or the server)
+		}
+		finally {
+			disconnect(socket);
+		}
+	}
+
+	private synchronized void disconnect(Socket socket) {
+		if (this.socket != socket) {
+			return;
+		}
+		this.socket = null;
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+		}
+		// The server releases all the leases of a connection when it closes
+		int count = 0;
+		for (ServerLock lock : locks.values()) {
+			if (lock.lease.getAndSet(0L) != 0) {
+				count++;
+			}
+		}
+		IOException closed = new IOException("Connection to lock server closed");
+		for (Long id : pending.keySet()) {
+			CompletableFuture<Boolean> reply = pending.remove(id);
+			if (reply != null) {
+				reply.completeExceptionally(closed);
+			}
+		}
+		logger.info("Disconnected from lock server (" + count + " leases lost)");
+	}
+
+	private static class Request {
+
+		private final long id;
+		private final String path;
+		private final CompletableFuture<Boolean> reply = new CompletableFuture<>();
+
+		Request(long id, String path) {
+			this.id = id;
+			this.path = path;
+		}
+
+	}
+
+	private class ServerLock implements Lock {
+
+		private final String path;
+
+		private final ReentrantLock delegate = new ReentrantLock();
+
+		/**
+		 * The id of the request that took the lease, or 0 if there isn't one.
+		 */
+		private final AtomicLong lease = new AtomicLong();
+
+		ServerLock(String path) {
+			this.path = path;
+		}
+
+		@Override
+		public void lock() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					lockInterruptibly();
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			delegate.lockInterruptibly();
+			lease(Long.MAX_VALUE);
+		}
+
+		@Override
+		public boolean tryLock() {
+			if (!delegate.tryLock()) {
+				return false;
+			}
+			try {
+				return lease(0L);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		@Override
+		public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + unit.toMillis(time);
+			return delegate.tryLock(time, unit) && lease(deadline);
+		}
+
+		/**
+		 * With the local lock held, make sure there is a lease (retrying until the
+		 * deadline), or give the local lock back.
+		 */
+		private boolean lease(long deadline) throws InterruptedException {
+			try {
+				while (lease.get() == 0) {
+					Request request = send("ACQUIRE", Collections.singleton(path)).get(0);
+					if (await(request)) {
+						lease.set(request.id);
+						break;
+					}
+					long wait = Math.min(RETRY, deadline - System.currentTimeMillis());
+					if (wait <= 0) {
+						delegate.unlock();
+						return false;
+					}
+					Thread.sleep(wait);
+				}
+				return true;
+			}
+			catch (RuntimeException | InterruptedException e) {
+				delegate.unlock();
+				throw e;
+			}
+		}
+
+		@Override
+		public void unlock() {
+			if (!delegate.isHeldByCurrentThread()) {
+				throw new IllegalMonitorStateException("You do not own lock at " + path);
+			}
+			try {
+				if (delegate.getHoldCount() == 1 && lease.getAndSet(0L) != 0) {
+					// No need to wait for the reply
+					send("RELEASE", Collections.singleton(path));
+				}
+			}
+			finally {
+				delegate.unlock();
+			}
+		}
+
+		@Override
+		public Condition newCondition() {
+			throw new UnsupportedOperationException("Conditions are not supported");
+		}
+
+	}
+
+}
@@ -0,0 +1,348 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.TriggerContext;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.ScheduledTask;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.scheduling.config.TriggerTask;
+import org.springframework.scheduling.support.CronTrigger;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs tasks on cron expressions through the Spring task registrar, with one trigger
+ * per distinct expression. This is the default; {@link TimingWheelScheduler} replaces
+ * it with hooks.scheduler.type=wheel.
+ */
+@Component
+@ConditionalOnProperty(prefix = "hooks.scheduler", name = "type", havingValue = "registrar",
+		matchIfMissing = true)
+class Scheduler implements SchedulingConfigurer, PublicMetrics, Closeable {
+
+	private volatile ScheduledTaskRegistrar taskRegistrar;
+	private volatile ScheduledThreadPoolExecutor pool;
+	protected volatile HookExecutor workers;
+	private volatile boolean running = false;
+	private final Map<String, Group> groups = new LinkedHashMap<>();
+	private final Map<Runnable, String> expressions = new HashMap<>();
+	private final Map<String, ScheduledTask> scheduled = new HashMap<>();
+	protected final HookMetrics metrics;
+
+	@Value("${hooks.scheduler.executor:shared}")
+	private String executor;
+
+	@Value("${hooks.scheduler.threads:10}")
+	private int threads;
+
+	@Value("${hooks.scheduler.timer-threads:1}")
+	private int timerThreads;
+
+	@Value("${hooks.scheduler.max-threads:0}")
+	private int maxThreads;
+
+	@Value("${hooks.scheduler.queue-capacity:1000}")
+	private int queueCapacity;
+
+	public Scheduler(HookMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public synchronized void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+		this.taskRegistrar = taskRegistrar;
+		if (running) {
+			// Started before the registrar was available
+			schedule();
+		}
+	}
+
+	public synchronized void addTask(Runnable task, String expression) {
+		Group group = groups.get(expression);
+		if (group == null) {
+			group = new Group(expression);
+			groups.put(expression, group);
+			if (running && taskRegistrar != null) {
+				scheduled.put(expression, taskRegistrar.scheduleTriggerTask(group.cron));
+			}
+		}
+		group.tasks.add(task);
+		expressions.put(task, expression);
+	}
+
+	public synchronized void removeTask(Runnable task) {
+		String expression = expressions.remove(task);
+		if (expression == null) {
+			return;
+		}
+		Group group = groups.get(expression);
+		group.tasks.remove(task);
+		if (group.tasks.isEmpty()) {
+			groups.remove(expression);
+			ScheduledTask cron = scheduled.remove(expression);
+			if (cron != null) {
+				cron.cancel();
+			}
+		}
+	}
+
+	public synchronized void start() {
+		running = true;
+		schedule();
+	}
+
+	private void schedule() {
+		if (taskRegistrar != null && pool == null) {
+			// Either the timer pool runs the firings, or it only hands them to the workers
+			boolean shared = "shared".equals(executor);
+			pool = new ScheduledThreadPoolExecutor(shared ? threads : timerThreads);
+			workers = shared ? null : createWorkers();
+			taskRegistrar.setScheduler(pool);
+			for (Map.Entry<String, Group> group : groups.entrySet()) {
+				scheduled.put(group.getKey(),
+						taskRegistrar.scheduleTriggerTask(group.getValue().cron));
+			}
+		}
+	}
+
+	public synchronized void stop() {
+		for (ScheduledTask cron : scheduled.values()) {
+			cron.cancel();
+		}
+		scheduled.clear();
+		if (taskRegistrar != null && pool != null) {
+			taskRegistrar.destroy();
+			pool.shutdown();
+			pool = null;
+		}
+		if (workers != null) {
+			workers.shutdown();
+			workers = null;
+		}
+		running = false;
+	}
+
+	/**
+	 * Workers for the firings, as configured (with "shared" the same as "fixed" for a
+	 * scheduler that has its own timer).
+	 */
+	protected HookExecutor createWorkers() {
+		String mode = "shared".equals(executor) ? "fixed" : executor;
+		int max = maxThreads;
+		if (max <= 0) {
+			// A virtual thread costs next to nothing while it waits
+			max = "virtual".equals(mode) ? 10000 : 200;
+		}
+		return HookExecutor.create(mode, threads, max, queueCapacity);
+	}
+
+	/**
+	 * What to run for the firing of a task at this cron instant: the task itself, or if
+	 * it is subject to admission control a ticket (null if the firing was coalesced or
+	 * shed).
+	 */
+	protected Runnable admit(Runnable task, long instant) {
+		if (task instanceof HookAdmission.Firing) {
+			return ((HookAdmission.Firing) task).admit(instant);
+		}
+		return task;
+	}
+
+	/**
+	 * How long after each tick to hand off this task (milliseconds).
+	 */
+	protected long delay(Runnable task) {
+		if (task instanceof HookAdmission.Firing) {
+			return ((HookAdmission.Firing) task).getDelay();
+		}
+		return 0L;
+	}
+
+	/**
+	 * An admitted firing could not be handed to the workers.
+	 */
+	protected void cancel(Runnable firing) {
+		if (firing instanceof HookAdmission.Ticket) {
+			((HookAdmission.Ticket) firing).cancel();
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		return Arrays.<Metric<?>>asList(new Metric<>("hooks.scheduler.queued", getQueued()),
+				new Metric<>("hooks.scheduler.active", getActive()),
+				new Metric<>("hooks.scheduler.threads", getThreads()),
+				new Metric<>("hooks.scheduler.saturation", getSaturation()));
+	}
+
+	protected int getQueued() {
+		HookExecutor workers = this.workers;
+		if (workers != null) {
+			return workers.getQueued();
+		}
+		ScheduledThreadPoolExecutor pool = this.pool;
+		if (pool == null) {
+			return 0;
+		}
+		// Every scheduled firing sits in the queue, so only count the ones already due
+		int due = 0;
+		for (Runnable task : pool.getQueue()) {
+			if (((Delayed) task).getDelay(TimeUnit.MILLISECONDS) <= 0) {
+				due++;
+			}
+		}
+		return due;
+	}
+
+	protected int getActive() {
+		HookExecutor workers = this.workers;
+		if (workers != null) {
+			return workers.getActive();
+		}
+		ScheduledThreadPoolExecutor pool = this.pool;
+		return pool == null ? 0 : pool.getActiveCount();
+	}
+
+	protected int getThreads() {
+		HookExecutor workers = this.workers;
+		if (workers != null) {
+			return workers.getThreads();
+		}
+		ScheduledThreadPoolExecutor pool = this.pool;
+		return pool == null ? 0 : pool.getPoolSize();
+	}
+
+	protected int getSaturation() {
+		HookExecutor workers = this.workers;
+		if (workers != null) {
+			return workers.getSaturation();
+		}
+		ScheduledThreadPoolExecutor pool = this.pool;
+		return pool == null ? 0 : 100 * pool.getActiveCount() / pool.getCorePoolSize();
+	}
+
+	@Override
+	public void close() throws IOException {
+		stop();
+	}
+
+	/**
+	 * All the tasks with the same cron expression: they share one parsed trigger and
+	 * one timer event per instant, which fans out to the workers (or the pool).
+	 */
+	private class Group implements Runnable {
+
+		private final Set<Runnable> tasks = ConcurrentHashMap.newKeySet();
+		private final LagTrigger trigger;
+		private final TriggerTask cron;
+
+		public Group(String expression) {
+			this.trigger = new LagTrigger(expression);
+			this.cron = new TriggerTask(this, trigger);
+		}
+
+		@Override
+		public void run() {
+			ScheduledThreadPoolExecutor pool = Scheduler.this.pool;
+			long instant = trigger.scheduled;
+			for (Runnable task : tasks) {
+				long delay = delay(task);
+				try {
+					if (delay > 0) {
+						pool.schedule(() -> handOff(task, instant), delay,
+								TimeUnit.MILLISECONDS);
+					}
+					else if (!handOff(task, instant)) {
+						return;
+					}
+				}
+				catch (RejectedExecutionException e) {
+					// Stopping
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Hand this firing of a task to the workers (or the pool), and carry on unless
+		 * the scheduler is stopping.
+		 */
+		private boolean handOff(Runnable task, long instant) {
+			ScheduledThreadPoolExecutor pool = Scheduler.this.pool;
+			HookExecutor workers = Scheduler.this.workers;
+			if (pool == null) {
+				return false;
+			}
+			Runnable firing = admit(task, instant);
+			if (firing == null) {
+				return true;
+			}
+			try {
+				if (workers != null) {
+					workers.execute(firing);
+				}
+				else {
+					pool.execute(firing);
+				}
+			}
+			catch (RejectedExecutionException e) {
+				cancel(firing);
+				if (pool.isShutdown()) {
+					return false;
+				}
+				metrics.rejected();
+			}
+			return true;
+		}
+
+	}
+
+	private class LagTrigger implements Trigger {
+
+		private final CronTrigger cron;
+
+		/**
+		 * The instant of the run that is due next (or in progress).
+		 */
+		private volatile long scheduled;
+
+		public LagTrigger(String expression) {
+			this.cron = new CronTrigger(expression);
+		}
+
+		@Override
+		public Date nextExecutionTime(TriggerContext context) {
+			// Called again after each run, so the last run is known
+			Date actual = context.lastActualExecutionTime();
+			if (actual != null) {
+				metrics.lag(actual.getTime()
+						- context.lastScheduledExecutionTime().getTime());
+			}
+			Date next = cron.nextExecutionTime(context);
+			if (next != null) {
+				scheduled = next.getTime();
+			}
+			return next;
+		}
+
+	}
+
+}
@@ -0,0 +1,336 @@
+package com.example;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+import org.springframework.stereotype.Component;
+
+/**
+ * A {@link Scheduler} backed by a hierarchical timing wheel (as in the classic Linux
+ * kernel timers), for very large numbers of hooks. Inserting and expiring a firing is
+ * O(1), and the only per-hook state is the task, its (shared) cron expression and the
+ * next cron instant and fire time in ticks. A single timer thread advances the wheel and hands due
+ * tasks to the workers (a fixed pool unless another executor is configured). A task with
+ * a delay is put in the wheel that much after each cron instant, so it costs nothing
+ * extra. The id of a removed task is reused by the next one added, and an entry left in
+ * the wheel for the old task is told apart by the generation it was put there with.
+ */
+@Component
+@ConditionalOnProperty(prefix = "hooks.scheduler", name = "type", havingValue = "wheel")
+class TimingWheelScheduler extends Scheduler {
+
+	private static Logger logger = LoggerFactory.getLogger(TimingWheelScheduler.class);
+
+	private static final int SLOT_BITS = 8;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+
+	private final long tick;
+	private final int levels;
+
+	private final Map<String, CronSequenceGenerator> crons = new HashMap<>();
+	private final Map<Runnable, Integer> ids = new HashMap<>();
+	private Runnable[] tasks = new Runnable[16];
+	private CronSequenceGenerator[] triggers = new CronSequenceGenerator[16];
+	private long[] instants = new long[16];
+	private long[] deadlines = new long[16];
+	private int[] generations = new int[16];
+	private int size;
+	private int[] free = new int[16];
+	private int freeCount;
+
+	private final Bucket[][] wheel;
+	private final Bucket overflow = new Bucket();
+	private long origin;
+	private long current;
+
+	private volatile boolean running = false;
+	private volatile Thread timer;
+
+	@Autowired
+	public TimingWheelScheduler(HookMetrics metrics,
+			@Value("${hooks.scheduler.tick:10}") long tick) {
+		this(metrics, tick, LEVELS);
+	}
+
+	/**
+	 * A wheel with fewer levels reaches the overflow sooner (for tests).
+	 */
+	TimingWheelScheduler(HookMetrics metrics, long tick, int levels) {
+		super(metrics);
+		this.tick = tick;
+		this.levels = levels;
+		this.wheel = new Bucket[levels][SLOTS];
+		for (int level = 0; level < levels; level++) {
+			for (int slot = 0; slot < SLOTS; slot++) {
+				wheel[level][slot] = new Bucket();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void addTask(Runnable task, String expression) {
+		CronSequenceGenerator trigger = crons.get(expression);
+		if (trigger == null) {
+			trigger = new CronSequenceGenerator(expression);
+			crons.put(expression, trigger);
+		}
+		int id;
+		if (freeCount > 0) {
+			id = free[--freeCount];
+		}
+		else {
+			if (size == tasks.length) {
+				int capacity = size * 2;
+				tasks = Arrays.copyOf(tasks, capacity);
+				triggers = Arrays.copyOf(triggers, capacity);
+				instants = Arrays.copyOf(instants, capacity);
+				deadlines = Arrays.copyOf(deadlines, capacity);
+				generations = Arrays.copyOf(generations, capacity);
+			}
+			id = size++;
+		}
+		tasks[id] = task;
+		triggers[id] = trigger;
+		ids.put(task, id);
+		if (running) {
+			schedule(id, trigger.next(new Date()));
+		}
+	}
+
+	@Override
+	public synchronized void removeTask(Runnable task) {
+		Integer id = ids.remove(task);
+		if (id != null) {
+			tasks[id] = null;
+			triggers[id] = null;
+			// Anything still in the wheel for this id is dropped when it comes up
+			generations[id]++;
+			if (freeCount == free.length) {
+				free = Arrays.copyOf(free, freeCount * 2);
+			}
+			free[freeCount++] = id;
+		}
+	}
+
+	/**
+	 * The number of tasks scheduled.
+	 */
+	public synchronized int getTaskCount() {
+		return ids.size();
+	}
+
+	/**
+	 * The number of ids in use or free for reuse, which is at most the largest number of
+	 * tasks there have been at once.
+	 */
+	public synchronized int getCapacity() {
+		return size;
+	}
+
+	@Override
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		origin = now - now % tick;
+		current = 0;
+		for (Bucket[] level : wheel) {
+			for (Bucket bucket : level) {
+				bucket.clear();
+			}
+		}
+		overflow.clear();
+		for (int id = 0; id < size; id++) {
+			if (tasks[id] != null) {
+				schedule(id, triggers[id].next(new Date(now)));
+			}
+		}
+		workers = createWorkers();
+		running = true;
+		timer = new Thread(this::run, "hook-timer");
+		timer.setDaemon(true);
+		timer.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		running = false;
+		if (timer != null) {
+			timer.interrupt();
+			timer = null;
+		}
+		if (workers != null) {
+			workers.shutdown();
+			workers = null;
+		}
+	}
+
+	private void run() {
+		while (running) {
+			long target = (System.currentTimeMillis() - origin) / tick;
+			synchronized (this) {
+				while (running && current < target) {
+					advance();
+				}
+			}
+			long sleep = origin + (current + 1) * tick - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private void advance() {
+		current++;
+		int index = (int) (current & SLOT_MASK);
+		if (index == 0) {
+			// Pull the next slot of each wheel down a level when the one below wraps
+			int level = 1;
+			for (; level < levels; level++) {
+				int slot = (int) ((current >> (SLOT_BITS * level)) & SLOT_MASK);
+				cascade(wheel[level][slot]);
+				if (slot != 0) {
+					break;
+				}
+			}
+			if (level == levels) {
+				cascade(overflow);
+			}
+		}
+		Bucket due = wheel[0][index];
+		long now = origin + current * tick;
+		// Hooks due together mostly share an expression (and cron instant), so work out
+		// each one's next fire time once
+		Map<CronSequenceGenerator, Next> nexts = new IdentityHashMap<>();
+		for (int i = 0; i < due.size; i++) {
+			int id = live(due.entries[i]);
+			if (id < 0) {
+				continue;
+			}
+			fire(id, now);
+			// Count from the instant the firing belongs to, not from when it was delayed to
+			long instant = instants[id];
+			Next next = nexts.get(triggers[id]);
+			if (next == null || next.instant != instant) {
+				next = new Next(instant, triggers[id].next(new Date(instant)));
+				nexts.put(triggers[id], next);
+			}
+			schedule(id, next.date);
+		}
+		due.clear();
+	}
+
+	private void fire(int id, long due) {
+		Runnable task = admit(tasks[id], instants[id]);
+		if (task == null) {
+			return;
+		}
+		try {
+			workers.execute(() -> {
+				// Due at the tick, which may be up to a tick after the cron instant
+				metrics.lag(System.currentTimeMillis() - due);
+				task.run();
+			});
+		}
+		catch (RejectedExecutionException e) {
+			cancel(task);
+			metrics.rejected();
+			logger.info("Missed: " + e.getMessage());
+		}
+	}
+
+	private void schedule(int id, Date next) {
+		instants[id] = next.getTime();
+		long time = next.getTime() + delay(tasks[id]);
+		long deadline = (time - origin + tick - 1) / tick;
+		deadlines[id] = Math.max(deadline, current + 1);
+		insert(id);
+	}
+
+	private void cascade(Bucket bucket) {
+		// Detach first: overflow entries can land straight back in the same bucket
+		long[] entries = bucket.entries;
+		int count = bucket.size;
+		bucket.entries = new long[0];
+		bucket.clear();
+		for (int i = 0; i < count; i++) {
+			int id = live(entries[i]);
+			if (id >= 0) {
+				insert(id);
+			}
+		}
+	}
+
+	private void insert(int id) {
+		long deadline = deadlines[id];
+		long delta = deadline - current;
+		// The generation goes in the high half of the entry, the id in the low half
+		long entry = (long) generations[id] << 32 | id;
+		for (int level = 0; level < levels; level++) {
+			if (delta < 1L << (SLOT_BITS * (level + 1))) {
+				wheel[level][(int) ((deadline >> (SLOT_BITS * level)) & SLOT_MASK)]
+						.add(entry);
+				return;
+			}
+		}
+		overflow.add(entry);
+	}
+
+	/**
+	 * The id in a wheel entry, or -1 if the task it was for has been removed since.
+	 */
+	private int live(long entry) {
+		int id = (int) entry;
+		return generations[id] == (int) (entry >>> 32) ? id : -1;
+	}
+
+	private static class Next {
+
+		private final long instant;
+		private final Date date;
+
+		Next(long instant, Date date) {
+			this.instant = instant;
+			this.date = date;
+		}
+
+	}
+
+	private static class Bucket {
+
+		private long[] entries = new long[0];
+		private int size;
+
+		public void add(long entry) {
+			if (size == entries.length) {
+				entries = Arrays.copyOf(entries, Math.max(4, size * 2));
+			}
+			entries[size++] = entry;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,156 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class HookAdmissionTests {
+
+	private final HookMetrics metrics = mock(HookMetrics.class);
+
+	// The keys and instants the bodies were fired with, and their callbacks
+	private final List<String> fired = new CopyOnWriteArrayList<>();
+	private final List<Runnable> callbacks = new CopyOnWriteArrayList<>();
+
+	private HookAdmission admission;
+
+	@Before
+	public void init() {
+		admission = new HookAdmission(metrics);
+		ReflectionTestUtils.setField(admission, "capacity", 2);
+		ReflectionTestUtils.setField(admission, "shed", "oldest");
+	}
+
+	@Test
+	public void coalescesWhilePending() {
+		HookAdmission.Firing firing = firing("one");
+		HookAdmission.Ticket ticket = firing.admit(1000L);
+		assertThat(ticket).isNotNull();
+		assertThat(firing.admit(2000L)).isNull();
+		// Still pending while the body runs, and after it returns until it calls back
+		ticket.run();
+		assertThat(firing.admit(3000L)).isNull();
+		verify(metrics, times(2)).coalesced();
+		callbacks.get(0).run();
+		assertThat(firing.admit(4000L)).isNotNull();
+		assertThat(fired).containsExactly("one@1000");
+	}
+
+	@Test
+	public void keysAreIndependent() {
+		assertThat(firing("one").admit(1000L)).isNotNull();
+		assertThat(firing("two").admit(1000L)).isNotNull();
+		verify(metrics, never()).coalesced();
+	}
+
+	@Test
+	public void callbackTwiceReleasesOnce() {
+		HookAdmission.Firing firing = firing("one");
+		firing.admit(1000L).run();
+		callbacks.get(0).run();
+		HookAdmission.Ticket next = firing.admit(2000L);
+		// A late second call from the first firing must not release the second
+		callbacks.get(0).run();
+		assertThat(firing.admit(3000L)).isNull();
+		next.run();
+		assertThat(fired).containsExactly("one@1000", "one@2000");
+	}
+
+	@Test
+	public void releasesWhenTheBodyThrows() {
+		HookAdmission.Firing firing = admission.firing("one", (instant, done) -> {
+			throw new IllegalStateException("Planned");
+		});
+		try {
+			firing.admit(1000L).run();
+			fail("Expected IllegalStateException");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertThat(firing.admit(2000L)).isNotNull();
+	}
+
+	@Test
+	public void cancelReleases() {
+		HookAdmission.Firing firing = firing("one");
+		HookAdmission.Ticket ticket = firing.admit(1000L);
+		ticket.cancel();
+		assertThat(waiting()).isZero();
+		// Too late to run now
+		ticket.run();
+		assertThat(fired).isEmpty();
+		assertThat(firing.admit(2000L)).isNotNull();
+	}
+
+	@Test
+	public void shedsTheOldest() {
+		HookAdmission.Ticket one = firing("one").admit(1000L);
+		HookAdmission.Ticket two = firing("two").admit(1000L);
+		HookAdmission.Ticket three = firing("three").admit(1000L);
+		assertThat(three).isNotNull();
+		verify(metrics).shed();
+		assertThat(waiting()).isEqualTo(2);
+		one.run();
+		two.run();
+		three.run();
+		assertThat(fired).containsExactly("two@1000", "three@1000");
+		// The shed firing is no longer pending, so its next tick gets in
+		assertThat(firing("one").admit(2000L)).isNotNull();
+	}
+
+	@Test
+	public void shedsTheNewest() {
+		ReflectionTestUtils.setField(admission, "shed", "newest");
+		HookAdmission.Ticket one = firing("one").admit(1000L);
+		HookAdmission.Ticket two = firing("two").admit(1000L);
+		assertThat(firing("three").admit(1000L)).isNull();
+		verify(metrics).shed();
+		one.run();
+		two.run();
+		assertThat(fired).containsExactly("one@1000", "two@1000");
+		assertThat(firing("three").admit(2000L)).isNotNull();
+	}
+
+	@Test
+	public void runningFiringsDoNotCountAgainstTheCapacity() {
+		firing("one").admit(1000L).run();
+		firing("two").admit(1000L).run();
+		assertThat(firing("three").admit(1000L)).isNotNull();
+		assertThat(firing("four").admit(1000L)).isNotNull();
+		verify(metrics, never()).shed();
+		assertThat(waiting()).isEqualTo(2);
+		assertThat(metric("hooks.admission.pending")).isEqualTo(4);
+	}
+
+	private HookAdmission.Firing firing(String key) {
+		return admission.firing(key, (instant, done) -> {
+			fired.add(key + "@" + instant);
+			callbacks.add(done);
+		});
+	}
+
+	private int waiting() {
+		return metric("hooks.admission.waiting");
+	}
+
+	private int metric(String name) {
+		Map<String, Number> values = admission.metrics().stream()
+				.collect(Collectors.toMap(Metric::getName, Metric::getValue));
+		return values.get(name).intValue();
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class HookDispatcherBucketTests {
+
+	private static final double RATE = 10;
+
+	private static final int BURST = 3;
+
+	private static final long MAX_DELAY = 250L;
+
+	private final HookDispatcher.Bucket bucket = new HookDispatcher.Bucket(BURST);
+
+	@Test
+	public void burstGoesStraightOut() {
+		for (int i = 0; i < BURST; i++) {
+			assertThat(reserve()).isZero();
+		}
+	}
+
+	@Test
+	public void overTheBurstWaitsForTheRate() {
+		drain();
+		// A token every 100ms, each handed to the next ping in turn
+		assertThat(reserve()).isBetween(90L, 100L);
+		assertThat(reserve()).isBetween(190L, 200L);
+	}
+
+	@Test
+	public void rejectedWhenTheWaitIsTooLong() {
+		drain();
+		reserve();
+		reserve();
+		assertThat(reserve()).isEqualTo(-1L);
+		// A rejected ping takes no turn, so the next one is no worse off
+		assertThat(reserve()).isEqualTo(-1L);
+	}
+
+	@Test
+	public void refillsAtTheRate() throws Exception {
+		drain();
+		Thread.sleep(250);
+		assertThat(reserve()).isZero();
+		assertThat(reserve()).isZero();
+		assertThat(reserve()).isGreaterThan(0L);
+	}
+
+	@Test
+	public void refillStopsAtTheBurst() throws Exception {
+		drain();
+		Thread.sleep(600);
+		drain();
+		assertThat(reserve()).isGreaterThan(0L);
+	}
+
+	private void drain() {
+		for (int i = 0; i < BURST; i++) {
+			reserve();
+		}
+	}
+
+	private long reserve() {
+		return bucket.reserve(RATE, BURST, MAX_DELAY);
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HookExecutorTests {
+
+	// Holds the firings until the test lets them go
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private HookExecutor executor;
+
+	@After
+	public void stop() {
+		release.countDown();
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void fixedQueuesBehindItsThreads() throws Exception {
+		executor = HookExecutor.fixed(2);
+		for (int i = 0; i < 3; i++) {
+			executor.execute(this::block);
+		}
+		await(() -> executor.getActive() == 2);
+		assertThat(executor.getQueued()).isEqualTo(1);
+		assertThat(executor.getThreads()).isEqualTo(2);
+		assertThat(executor.getSaturation()).isEqualTo(100);
+		release.countDown();
+		await(() -> executor.getActive() == 0);
+		assertThat(executor.getQueued()).isZero();
+		assertThat(executor.getSaturation()).isZero();
+	}
+
+	@Test
+	public void elasticGrowsBeforeItQueues() throws Exception {
+		executor = HookExecutor.elastic(2, 1);
+		executor.execute(this::block);
+		await(() -> executor.getActive() == 1);
+		// The only thread is busy, so this one gets a new thread rather than waiting
+		executor.execute(this::block);
+		await(() -> executor.getActive() == 2);
+		assertThat(executor.getThreads()).isEqualTo(2);
+		assertThat(executor.getQueued()).isZero();
+		// At the maximum: into the queue, and once that is full, rejected
+		executor.execute(this::block);
+		assertThat(executor.getQueued()).isEqualTo(1);
+		assertRejected();
+		assertThat(executor.getQueued()).isEqualTo(1);
+		release.countDown();
+		await(() -> executor.getActive() == 0 && executor.getQueued() == 0);
+	}
+
+	@Test
+	public void elasticReusesAnIdleThread() throws Exception {
+		executor = HookExecutor.elastic(4, 1);
+		executor.execute(() -> {
+		});
+		await(() -> executor.getActive() == 0 && executor.getQueued() == 0);
+		// The pool's own count of busy threads lags a little behind ours
+		Thread.sleep(100);
+		executor.execute(() -> {
+		});
+		await(() -> executor.getActive() == 0 && executor.getQueued() == 0);
+		assertThat(executor.getThreads()).isEqualTo(1);
+	}
+
+	@Test
+	public void virtualLimitsTheFiringsInFlight() throws Exception {
+		assumeTrue(virtualThreads());
+		executor = HookExecutor.virtual(2, 1);
+		executor.execute(this::block);
+		executor.execute(this::block);
+		assertRejected();
+		release.countDown();
+		await(() -> executor.getActive() == 0 && executor.getQueued() == 0);
+		executor.execute(() -> {
+		});
+	}
+
+	@Test
+	public void virtualFallsBackToAnElasticPool() throws Exception {
+		assumeFalse(virtualThreads());
+		executor = HookExecutor.virtual(2, 1);
+		executor.execute(this::block);
+		executor.execute(this::block);
+		await(() -> executor.getActive() == 2);
+		assertThat(executor.getThreads()).isEqualTo(2);
+		executor.execute(this::block);
+		assertThat(executor.getQueued()).isEqualTo(1);
+		assertRejected();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownMode() {
+		HookExecutor.create("cached", 1, 1, 1);
+	}
+
+	private void assertRejected() {
+		try {
+			executor.execute(this::block);
+			fail("Expected RejectedExecutionException");
+		}
+		catch (RejectedExecutionException e) {
+			// expected
+		}
+	}
+
+	private void block() {
+		try {
+			release.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Timed out waiting for the workers");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private static boolean virtualThreads() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+}
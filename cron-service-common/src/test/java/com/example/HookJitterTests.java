@@ -0,0 +1,82 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class HookJitterTests {
+
+	@Test
+	public void noWindowNoOffset() {
+		HookJitter jitter = jitter(0L);
+		for (long id = 0; id < 100; id++) {
+			assertThat(jitter.offset(id)).isZero();
+			assertThat(jitter.offset(id, 10)).isZero();
+		}
+	}
+
+	@Test
+	public void offsetsAreInsideTheWindow() {
+		HookJitter jitter = jitter(1000L);
+		for (long id : new long[] { 0L, 1L, -1L, Long.MIN_VALUE, Long.MAX_VALUE }) {
+			assertThat(jitter.offset(id)).isBetween(0L, 999L);
+		}
+		for (long id = 0; id < 10000; id++) {
+			assertThat(jitter.offset(id)).isBetween(0L, 999L);
+		}
+	}
+
+	@Test
+	public void offsetsAreStable() {
+		// Another instance (as on another node) gives every hook the same offset
+		HookJitter one = jitter(1000L);
+		HookJitter two = jitter(1000L);
+		for (long id = 0; id < 1000; id++) {
+			assertThat(one.offset(id)).isEqualTo(two.offset(id));
+		}
+	}
+
+	@Test
+	public void consecutiveIdsAreSpread() {
+		HookJitter jitter = jitter(1000L);
+		int[] tenths = new int[10];
+		for (long id = 0; id < 10000; id++) {
+			tenths[(int) (jitter.offset(id) / 100)]++;
+		}
+		for (int count : tenths) {
+			assertThat(count).isBetween(800, 1200);
+		}
+	}
+
+	@Test
+	public void stepsRoundDown() {
+		HookJitter jitter = jitter(1000L);
+		Set<Long> steps = new HashSet<>();
+		for (long id = 0; id < 1000; id++) {
+			long offset = jitter.offset(id, 4);
+			assertThat(offset % 250).isZero();
+			assertThat(offset).isBetween(jitter.offset(id) - 249, jitter.offset(id));
+			steps.add(offset);
+		}
+		assertThat(steps).containsOnly(0L, 250L, 500L, 750L);
+	}
+
+	@Test
+	public void moreStepsThanMilliseconds() {
+		HookJitter jitter = jitter(10L);
+		for (long id = 0; id < 100; id++) {
+			assertThat(jitter.offset(id, 100)).isEqualTo(jitter.offset(id));
+		}
+	}
+
+	private static HookJitter jitter(long window) {
+		HookJitter jitter = new HookJitter();
+		ReflectionTestUtils.setField(jitter, "window", window);
+		return jitter;
+	}
+
+}
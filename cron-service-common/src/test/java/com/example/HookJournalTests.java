@@ -0,0 +1,82 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class HookJournalTests {
+
+	private EmbeddedDatabase database;
+
+	private JdbcTemplate template;
+
+	private HookJournal journal;
+
+	@Before
+	public void init() {
+		database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2)
+				.generateUniqueName(true).build();
+		template = new JdbcTemplate(database);
+		template.execute("CREATE TABLE firing (id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+				+ "hook BIGINT, token BIGINT, node VARCHAR(255), started BIGINT, "
+				+ "duration BIGINT, status INT, detail VARCHAR(255))");
+		template.execute("CREATE INDEX firing_started ON firing (started)");
+		journal = new HookJournal(template, new DataSourceTransactionManager(database),
+				mock(HookMetrics.class));
+		ReflectionTestUtils.setField(journal, "compactBatchSize", 100);
+	}
+
+	@After
+	public void close() {
+		database.shutdown();
+	}
+
+	@Test
+	public void compactsInBatches() {
+		insert(250, 1000L);
+		insert(10, 5000L);
+		assertThat(journal.compact(2000L)).isEqualTo(250);
+		assertThat(count()).isEqualTo(10);
+	}
+
+	@Test
+	public void compactsAnExactNumberOfBatches() {
+		insert(200, 1000L);
+		assertThat(journal.compact(2000L)).isEqualTo(200);
+		assertThat(count()).isZero();
+	}
+
+	@Test
+	public void nothingToCompact() {
+		insert(10, 5000L);
+		assertThat(journal.compact(2000L)).isZero();
+		assertThat(count()).isEqualTo(10);
+	}
+
+	private void insert(int count, long started) {
+		List<Object[]> rows = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			rows.add(new Object[] { 1L, i, "node", started + i, 10L, 200, null });
+		}
+		template.batchUpdate("INSERT INTO firing "
+				+ "(hook, token, node, started, duration, status, detail) "
+				+ "VALUES (?, ?, ?, ?, ?, ?, ?)", rows);
+	}
+
+	private int count() {
+		return template.queryForObject("SELECT COUNT(*) FROM firing", Integer.class);
+	}
+
+}
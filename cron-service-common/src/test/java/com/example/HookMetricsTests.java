@@ -0,0 +1,39 @@
+package com.example;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+public class HookMetricsTests {
+
+	private final CounterService counters = mock(CounterService.class);
+
+	private final GaugeService gauges = mock(GaugeService.class);
+
+	private final HookMetrics metrics = new HookMetrics(counters, gauges);
+
+	@Test
+	public void lockedRecordsTheBatchOnce() {
+		metrics.locked(5L, 1000, 24);
+		verify(gauges).submit("timer.hooks.lock.acquire", 5L);
+		verify(gauges).submit("histogram.hooks.lock.acquired", 1000);
+		verify(gauges).submit("histogram.hooks.lock.missed", 24);
+		verifyNoMoreInteractions(gauges);
+		verify(counters, never()).increment(anyString());
+	}
+
+	@Test
+	public void sweptRecordsTheBatchOnce() {
+		metrics.swept(500);
+		verify(gauges).submit("histogram.hooks.lease.swept", 500);
+		verifyNoMoreInteractions(gauges);
+		verify(counters, never()).increment(anyString());
+	}
+
+}
@@ -0,0 +1,96 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockServerRegistryTests {
+
+	private static final long TTL = 300L;
+
+	private LockServer server;
+	private LockServerRegistry one;
+	private LockServerRegistry two;
+
+	@Before
+	public void start() throws Exception {
+		server = new LockServer(0);
+		server.start();
+		one = registry();
+		two = registry();
+	}
+
+	@After
+	public void close() {
+		one.destroy();
+		two.destroy();
+		server.close();
+	}
+
+	@Test
+	public void acquireAndRelease() throws Exception {
+		Lock lock = one.obtain("hook");
+		assertThat(lock.tryLock()).isTrue();
+		assertThat(two.obtain("hook").tryLock()).isFalse();
+		lock.unlock();
+		// The release is not waited for, so give the other one a moment
+		Lock other = two.obtain("hook");
+		assertThat(other.tryLock(1, TimeUnit.SECONDS)).isTrue();
+		other.unlock();
+	}
+
+	@Test
+	public void reentrantLockKeepsTheLease() throws Exception {
+		Lock lock = one.obtain("hook");
+		assertThat(lock.tryLock()).isTrue();
+		assertThat(lock.tryLock()).isTrue();
+		lock.unlock();
+		assertThat(two.obtain("hook").tryLock(200, TimeUnit.MILLISECONDS)).isFalse();
+		lock.unlock();
+	}
+
+	@Test
+	public void leaseIsRenewed() throws Exception {
+		Lock lock = one.obtain("hook");
+		assertThat(lock.tryLock()).isTrue();
+		Thread.sleep(TTL * 3);
+		assertThat(two.obtain("hook").tryLock()).isFalse();
+		lock.unlock();
+	}
+
+	@Test
+	public void releasedOnDisconnect() throws Exception {
+		assertThat(one.obtain("hook").tryLock()).isTrue();
+		one.destroy();
+		Lock other = two.obtain("hook");
+		assertThat(other.tryLock(1, TimeUnit.SECONDS)).isTrue();
+		other.unlock();
+	}
+
+	@Test
+	public void tryLockAllTakesTheFreeOnes() throws Exception {
+		Lock taken = two.obtain("b");
+		assertThat(taken.tryLock()).isTrue();
+		Map<Object, Lock> held = one.tryLockAll(Arrays.asList("a", "b", "c"));
+		assertThat(held.keySet()).containsExactly("a", "c");
+		for (Lock lock : held.values()) {
+			lock.unlock();
+		}
+		taken.unlock();
+	}
+
+	private LockServerRegistry registry() {
+		LockServerRegistry registry = new LockServerRegistry(
+				"127.0.0.1:" + server.getPort(), TTL);
+		registry.afterPropertiesSet();
+		return registry;
+	}
+
+}
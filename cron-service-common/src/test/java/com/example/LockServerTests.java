@@ -0,0 +1,177 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockServerTests {
+
+	private final List<Client> clients = new ArrayList<>();
+
+	private LockServer server;
+
+	@Before
+	public void start() throws Exception {
+		server = new LockServer(0);
+		server.start();
+	}
+
+	@After
+	public void close() throws Exception {
+		for (Client client : clients) {
+			client.close();
+		}
+		server.close();
+	}
+
+	@Test
+	public void acquireRenewAndRelease() throws Exception {
+		Client one = connect();
+		Client two = connect();
+		assertThat(one.call("1 ACQUIRE lock 10000")).isEqualTo("1 OK");
+		assertThat(two.call("1 ACQUIRE lock 10000")).isEqualTo("1 NO");
+		assertThat(one.call("2 RENEW lock 10000")).isEqualTo("2 OK");
+		assertThat(two.call("2 RENEW lock 10000")).isEqualTo("2 NO");
+		assertThat(two.call("3 RELEASE lock")).isEqualTo("3 NO");
+		assertThat(one.call("3 RELEASE lock")).isEqualTo("3 OK");
+		assertThat(two.call("4 ACQUIRE lock 10000")).isEqualTo("4 OK");
+	}
+
+	@Test
+	public void acquireAgainRenews() throws Exception {
+		Client one = connect();
+		assertThat(one.call("1 ACQUIRE lock 10000")).isEqualTo("1 OK");
+		assertThat(one.call("2 ACQUIRE lock 10000")).isEqualTo("2 OK");
+	}
+
+	@Test
+	public void pipelinedRepliesComeBackInOrder() throws Exception {
+		Client one = connect();
+		one.send("1 ACQUIRE a 10000\n2 ACQUIRE b 10000\n3 RELEASE a\n");
+		assertThat(one.read()).isEqualTo("1 OK");
+		assertThat(one.read()).isEqualTo("2 OK");
+		assertThat(one.read()).isEqualTo("3 OK");
+	}
+
+	@Test
+	public void expiredLeaseIsLost() throws Exception {
+		Client one = connect();
+		Client two = connect();
+		assertThat(one.call("1 ACQUIRE lock 100")).isEqualTo("1 OK");
+		assertThat(one.read()).isEqualTo("0 LOST lock");
+		assertThat(two.call("1 ACQUIRE lock 10000")).isEqualTo("1 OK");
+		assertThat(one.call("2 RENEW lock 10000")).isEqualTo("2 NO");
+	}
+
+	@Test
+	public void releasedOnDisconnect() throws Exception {
+		Client one = connect();
+		Client two = connect();
+		assertThat(one.call("1 ACQUIRE lock 10000")).isEqualTo("1 OK");
+		one.close();
+		// The server notices the close on its own thread
+		long deadline = System.currentTimeMillis() + 2000;
+		String reply;
+		int id = 0;
+		do {
+			Thread.sleep(20);
+			id++;
+			reply = two.call(id + " ACQUIRE lock 10000");
+		}
+		while (!reply.endsWith("OK") && System.currentTimeMillis() < deadline);
+		assertThat(reply).isEqualTo(id + " OK");
+	}
+
+	@Test
+	public void ttlIsCappedAtTheMaximum() throws Exception {
+		server.close();
+		server = new LockServer("127.0.0.1", 0, 100L);
+		server.start();
+		Client one = connect();
+		assertThat(one.call("1 ACQUIRE lock 3600000")).isEqualTo("1 OK");
+		assertThat(one.read()).isEqualTo("0 LOST lock");
+	}
+
+	@Test
+	public void clientNotReadingIsDisconnected() throws Exception {
+		server.setMaxPending(64 * 1024);
+		Client one = connect();
+		Client two = connect();
+		assertThat(one.call("1 ACQUIRE lock 10000")).isEqualTo("1 OK");
+		// Long ids make long replies, and they are never read
+		StringBuilder id = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			id.append('x');
+		}
+		String request = id + " RENEW lock 10000\n";
+		try {
+			for (int i = 0; i < 20000; i++) {
+				one.send(request);
+			}
+		}
+		catch (IOException e) {
+			// The server hung up
+		}
+		long deadline = System.currentTimeMillis() + 2000;
+		String reply;
+		int count = 0;
+		do {
+			Thread.sleep(20);
+			count++;
+			reply = two.call(count + " ACQUIRE lock 10000");
+		}
+		while (!reply.endsWith("OK") && System.currentTimeMillis() < deadline);
+		assertThat(reply).isEqualTo(count + " OK");
+	}
+
+	private Client connect() throws IOException {
+		Client client = new Client(server.getPort());
+		clients.add(client);
+		return client;
+	}
+
+	private static class Client {
+
+		private final Socket socket;
+		private final BufferedReader reader;
+
+		Client(int port) throws IOException {
+			socket = new Socket("127.0.0.1", port);
+			socket.setSoTimeout(2000);
+			reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+		}
+
+		String call(String line) throws IOException {
+			send(line + "\n");
+			return read();
+		}
+
+		void send(String lines) throws IOException {
+			OutputStream output = socket.getOutputStream();
+			output.write(lines.getBytes(StandardCharsets.US_ASCII));
+			output.flush();
+		}
+
+		String read() throws IOException {
+			return reader.readLine();
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TimingWheelSchedulerTests {
+
+	private static final String EVERY_SECOND = "* * * * * *";
+
+	// Cron instants the wheel handed over, and when each firing actually ran
+	private final List<Long> instants = new CopyOnWriteArrayList<>();
+	private final Map<Long, Long> fired = new ConcurrentHashMap<>();
+
+	private TimingWheelScheduler scheduler;
+
+	@After
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.stop();
+		}
+	}
+
+	@Test
+	public void firesOnTheInstant() throws Exception {
+		scheduler = scheduler(10, 4, 0);
+		scheduler.addTask(task(), EVERY_SECOND);
+		scheduler.start();
+		Thread.sleep(2500);
+		assertFiredEverySecond(0);
+	}
+
+	@Test
+	public void cascadesDownTheLevels() throws Exception {
+		// With a 1ms tick the first level only covers 256ms, so each firing starts out on
+		// the second level and has to be pulled down
+		scheduler = scheduler(1, 2, 0);
+		scheduler.addTask(task(), EVERY_SECOND);
+		scheduler.start();
+		Thread.sleep(2500);
+		assertFiredEverySecond(0);
+	}
+
+	@Test
+	public void overflowsBeyondTheWheel() throws Exception {
+		// One level of 256ms: each firing starts out in the overflow
+		scheduler = scheduler(1, 1, 0);
+		scheduler.addTask(task(), EVERY_SECOND);
+		scheduler.start();
+		Thread.sleep(2500);
+		assertFiredEverySecond(0);
+	}
+
+	@Test
+	public void addedWhileRunning() throws Exception {
+		scheduler = scheduler(10, 4, 0);
+		scheduler.start();
+		scheduler.addTask(task(), EVERY_SECOND);
+		Thread.sleep(2500);
+		assertFiredEverySecond(0);
+	}
+
+	@Test
+	public void tasksShareAnExpression() throws Exception {
+		scheduler = scheduler(10, 4, 0);
+		List<AtomicInteger> counts = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			AtomicInteger count = new AtomicInteger();
+			counts.add(count);
+			scheduler.addTask(count::incrementAndGet, EVERY_SECOND);
+		}
+		scheduler.addTask(task(), EVERY_SECOND);
+		scheduler.start();
+		Thread.sleep(2500);
+		assertThat(fired.size()).isGreaterThanOrEqualTo(2);
+		for (AtomicInteger count : counts) {
+			assertThat(count.get()).isEqualTo(fired.size());
+		}
+	}
+
+	@Test
+	public void delaysAfterTheInstant() throws Exception {
+		scheduler = scheduler(10, 4, 300);
+		scheduler.addTask(task(), EVERY_SECOND);
+		scheduler.start();
+		Thread.sleep(2500);
+		assertFiredEverySecond(300);
+	}
+
+	@Test
+	public void removedTaskDoesNotFire() throws Exception {
+		scheduler = scheduler(10, 4, 0);
+		Runnable task = task();
+		scheduler.addTask(task, EVERY_SECOND);
+		scheduler.start();
+		Thread.sleep(1500);
+		assertThat(instants).isNotEmpty();
+		// Its next firing is already in the wheel
+		scheduler.removeTask(task);
+		instants.clear();
+		Thread.sleep(1500);
+		assertThat(instants).isEmpty();
+		assertThat(scheduler.getTaskCount()).isZero();
+	}
+
+	@Test
+	public void reusesTheIdsOfRemovedTasks() throws Exception {
+		scheduler = scheduler(10, 4, 0);
+		Runnable removed = task();
+		scheduler.addTask(removed, EVERY_SECOND);
+		scheduler.start();
+		scheduler.removeTask(removed);
+		// Takes over the id while the removed task's firing is still in the wheel, which
+		// must not fire the new one twice
+		scheduler.addTask(task(), EVERY_SECOND);
+		for (int i = 0; i < 1000; i++) {
+			// Not due in the meantime (the timer can get in between the add and the remove)
+			Runnable task = task();
+			scheduler.addTask(task, "0 0 0 1 1 *");
+			scheduler.removeTask(task);
+		}
+		assertThat(scheduler.getTaskCount()).isEqualTo(1);
+		assertThat(scheduler.getCapacity()).isEqualTo(2);
+		Thread.sleep(2500);
+		assertFiredEverySecond(0);
+	}
+
+	private void assertFiredEverySecond(long delay) {
+		assertThat(instants.size()).isGreaterThanOrEqualTo(2);
+		assertThat(instants).doesNotHaveDuplicates();
+		long previous = 0;
+		for (long instant : instants) {
+			assertThat(instant % 1000).isZero();
+			if (previous > 0) {
+				assertThat(instant - previous).isEqualTo(1000);
+			}
+			previous = instant;
+			// Up to a tick late, and however long the worker took to pick it up
+			assertThat(fired.get(instant) - instant).isBetween(delay, delay + 200);
+		}
+	}
+
+	private Runnable task() {
+		return () -> {
+			long now = System.currentTimeMillis();
+			fired.put(instants.get(instants.size() - 1), now);
+		};
+	}
+
+	private TimingWheelScheduler scheduler(long tick, int levels, long delay) {
+		return new TimingWheelScheduler(mock(HookMetrics.class), tick, levels) {
+
+			@Override
+			protected HookExecutor createWorkers() {
+				return HookExecutor.fixed(2);
+			}
+
+			@Override
+			protected Runnable admit(Runnable task, long instant) {
+				instants.add(instant);
+				return task;
+			}
+
+			@Override
+			protected long delay(Runnable task) {
+				return delay;
+			}
+
+		};
+	}
+
+}
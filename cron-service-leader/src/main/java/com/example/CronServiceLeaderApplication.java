@@ -1,8 +1,9 @@
 package com.example;
 
-import java.io.Closeable;
-import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
@@ -10,49 +11,42 @@ import java.util.concurrent.Executors;
 
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.Repository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+import org.springframework.data.rest.core.annotation.RestResource;
+import org.springframework.data.rest.core.event.AbstractRepositoryEventListener;
 import org.springframework.http.HttpMethod;
 import org.springframework.integration.jdbc.lock.JdbcLockRegistry;
 import org.springframework.integration.jdbc.lock.LockRepository;
-import org.springframework.integration.leader.Candidate;
-import org.springframework.integration.leader.Context;
-import org.springframework.integration.leader.DefaultCandidate;
-import org.springframework.integration.leader.event.DefaultLeaderEventPublisher;
-import org.springframework.integration.support.leader.LockRegistryLeaderInitiator;
 import org.springframework.integration.support.locks.DefaultLockRegistry;
-import org.springframework.integration.support.locks.LockRegistry;
-import org.springframework.scheduling.annotation.SchedulingConfigurer;
-import org.springframework.scheduling.config.CronTask;
-import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.scheduling.support.CronSequenceGenerator;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.RestTemplate;
 
 @SpringBootApplication
 public class CronServiceLeaderApplication {
 
-	@Bean
-	public LockRegistryLeaderInitiator leaderInitiator(LockRegistry locks,
-			Candidate candidate, ApplicationEventPublisher applicationEventPublisher) {
-		LockRegistryLeaderInitiator initiator = new LockRegistryLeaderInitiator(locks,
-				candidate);
-		initiator.setLeaderEventPublisher(
-				new DefaultLeaderEventPublisher(applicationEventPublisher));
-		return initiator;
-	}
-
 	public static void main(String[] args) {
 		SpringApplication.run(CronServiceLeaderApplication.class, args);
 	}
@@ -69,141 +63,396 @@ class DefaultLockConfiguration {
 
 @Configuration
 @Profile("cloud")
-@ComponentScan(basePackageClasses = LockRepository.class)
+@ConditionalOnProperty(prefix = "hooks.locks", name = "backend", havingValue = "jdbc",
+		matchIfMissing = true)
 class JdbcLockConfiguration {
 
+	@Bean
+	public BatchLockRepository lockRepository(DataSource dataSource,
+			@Value("${hooks.leader.ttl:10000}") int ttl) {
+		// The lease: a leader that stops renewing loses its partitions after this long
+		BatchLockRepository repository = new BatchLockRepository(dataSource);
+		repository.setTimeToLive(ttl);
+		// A partition that is given up should be free for another instance straight away
+		repository.setKeepLeases(false);
+		return repository;
+	}
+
 	@Bean
 	public JdbcLockRegistry jdbcLockRegistry(LockRepository lockRepository) {
 		return new JdbcLockRegistry(lockRepository);
 	}
 
+	@Bean
+	public LockLeases lockLeases(BatchLockRepository lockRepository,
+			HookMetrics metrics) {
+		return new LockLeases(lockRepository, metrics);
+	}
+
+}
+
+@Configuration
+@Profile("cloud")
+@ConditionalOnProperty(prefix = "hooks.locks", name = "backend", havingValue = "server")
+class LockServerConfiguration {
+
+	@Bean(initMethod = "start")
+	@ConditionalOnProperty(prefix = "hooks.lock-server", name = "embedded",
+			havingValue = "true")
+	public LockServer lockServer(@Value("${hooks.lock-server.port:7077}") int port,
+			@Value("${hooks.lock-server.bind-address:127.0.0.1}") String bindAddress,
+			@Value("${hooks.lock-server.ttl:${hooks.leader.ttl:10000}}") long ttl) {
+		// No authentication: only reachable from this host unless configured otherwise
+		return new LockServer(bindAddress, port, ttl);
+	}
+
+	@Bean
+	public LockServerRegistry lockServerRegistry(
+			@Value("${hooks.lock-server.address:localhost:7077}") String address,
+			@Value("${hooks.leader.ttl:10000}") long ttl) {
+		// A leader that stops renewing loses its partitions after the same time as with JDBC
+		return new LockServerRegistry(address, ttl);
+	}
+
 }
 
 @Component
-class Scheduler implements SchedulingConfigurer, Closeable {
+class HookPinger extends AbstractRepositoryEventListener<Hook>
+		implements CommandLineRunner, DisposableBean {
 
-	private volatile ScheduledTaskRegistrar taskRegistrar;
-	private volatile ExecutorService pool;
-	private volatile boolean running = false;
+	private static Logger logger = LoggerFactory.getLogger(HookPinger.class);
+
+	// Upper bound on the firings replayed per hook with hooks.misfire=all
+	private static final int MAX_MISFIRES = 100;
+
+	private final HookRepository repository;
+	private final HookCache cache;
+	private Scheduler scheduler;
+	private final HookDispatcher dispatcher;
+	private final HookMetrics metrics;
+	private final HookWriter writer;
+	private final HookPartitions partitions;
+	private final HookTokens tokens;
+	private final HookAdmission admission;
+	private final HookJitter jitter;
+	private final Map<Long, String> crons = new HashMap<>();
+	private final Map<Long, Runnable> tasks = new HashMap<>();
+	// Off the election thread, so a slow catch up doesn't hold up the lock renewals
+	private final ExecutorService catchUps = Executors
+			.newSingleThreadExecutor(r -> new Thread(r, "hook-catch-up"));
+
+	@Value("${hooks.sync.cron:*/30 * * * * *}")
+	private String syncCron;
+
+	@Value("${hooks.sync.slack:60000}")
+	private long slack;
+
+	private long modified = 0L;
+
+	private final Misfire misfire;
+
+	public HookPinger(HookRepository repository, HookCache cache,
+			HookDispatcher dispatcher, HookMetrics metrics, HookWriter writer,
+			HookPartitions partitions, HookTokens tokens, HookAdmission admission,
+			HookJitter jitter, Scheduler scheduler,
+			@Value("${hooks.misfire:once}") String misfire) {
+		this.repository = repository;
+		this.cache = cache;
+		this.dispatcher = dispatcher;
+		this.metrics = metrics;
+		this.writer = writer;
+		this.partitions = partitions;
+		this.tokens = tokens;
+		this.admission = admission;
+		this.jitter = jitter;
+		this.scheduler = scheduler;
+		this.misfire = Misfire.valueOf(misfire.toUpperCase());
+		// Another leader has been moving the versions on while the partition was away
+		partitions.addGrantListener(partition -> cache
+				.evictAll(id -> partitions.partition(id) == partition));
+		partitions.addGrantListener(partition -> {
+			long granted = partitions.getGranted(partition);
+			catchUps.execute(() -> catchUp(partition, granted));
+		});
+	}
 
 	@Override
-	public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
-		this.taskRegistrar = taskRegistrar;
+	public void destroy() {
+		catchUps.shutdownNow();
 	}
 
-	public void addTask(Runnable task, String expression) {
-		if (running) {
-			taskRegistrar.scheduleCronTask(new CronTask(task, expression));
+	@Override
+	public void run(String... args) throws Exception {
+		if (repository.count() == 0) {
+			repository.save(new Hook(HttpMethod.GET, "http://localhost:8080/health",
+					"*/10 * * * * *"));
 		}
-		else {
-			taskRegistrar.addCronTask(new CronTask(task, expression));
+		for (Hook hook : repository.findAll()) {
+			register(hook);
 		}
+		scheduler.addTask(this::sync, syncCron);
 	}
 
-	public void start() {
-		running = true;
-		if (taskRegistrar != null) {
-			pool = Executors.newScheduledThreadPool(10);
-			taskRegistrar.setScheduler(pool);
-			taskRegistrar.afterPropertiesSet();
+	private synchronized void register(Hook hook) {
+		modified = Math.max(modified, hook.getModified());
+		String cron = crons.get(hook.getId());
+		if (hook.getCron() == null || hook.getCron().equals(cron)) {
+			return;
+		}
+		if (cron != null) {
+			logger.info("Rescheduling: " + hook);
+			scheduler.removeTask(tasks.remove(hook.getId()));
+		}
+		Runnable task = getTask(hook.getId());
+		try {
+			scheduler.addTask(task, hook.getCron());
 		}
+		catch (IllegalArgumentException e) {
+			crons.remove(hook.getId());
+			logger.info("Invalid cron: " + hook + " (" + e.getMessage() + ")");
+			return;
+		}
+		crons.put(hook.getId(), hook.getCron());
+		tasks.put(hook.getId(), task);
 	}
 
-	public void stop() {
-		if (taskRegistrar != null) {
-			taskRegistrar.destroy();
-			pool.shutdown();
-			pool = null;
+	private synchronized void unregister(Long id) {
+		crons.remove(id);
+		cache.evict(id);
+		Runnable task = tasks.remove(id);
+		if (task != null) {
+			logger.info("Cancelling: " + id);
+			scheduler.removeTask(task);
 		}
-		running = false;
 	}
 
 	@Override
-	public void close() throws IOException {
-		stop();
+	protected void onBeforeCreate(Hook hook) {
+		hook.setModified(System.currentTimeMillis());
 	}
 
-}
-
-@Component
-class HookPinger extends DefaultCandidate implements CommandLineRunner {
-
-	private static Logger logger = LoggerFactory.getLogger(HookPinger.class);
-
-	private final HookRepository repository;
-	private Scheduler scheduler;
-	private RestTemplate restTemplate = new RestTemplate();
-	private Set<Long> hooks = new HashSet<>();
-
-	public HookPinger(HookRepository repository, Scheduler scheduler) {
-		this.repository = repository;
-		this.scheduler = scheduler;
+	@Override
+	protected void onBeforeSave(Hook hook) {
+		hook.setModified(System.currentTimeMillis());
 	}
 
 	@Override
-	public void onGranted(Context ctx) {
-		super.onGranted(ctx);
-		scheduler.start();
+	protected void onAfterCreate(Hook hook) {
+		register(hook);
 	}
 
 	@Override
-	public void onRevoked(Context ctx) {
-		scheduler.stop();
-		super.onRevoked(ctx);
+	protected void onAfterSave(Hook hook) {
+		register(hook);
 	}
 
 	@Override
-	public void run(String... args) throws Exception {
-		if (repository.count() == 0) {
-			repository.save(new Hook(HttpMethod.GET, "http://localhost:8080/health",
-					"*/10 * * * * *"));
+	protected void onAfterDelete(Hook hook) {
+		unregister(hook.getId());
+	}
+
+	private void sync() {
+		// Pick up changes made through other nodes: new and deleted hooks by id, and
+		// edits by modification time (allowing some slack for clock skew)
+		try {
+			Set<Long> ids = new HashSet<>(repository.findAllIds());
+			Set<Long> known;
+			synchronized (this) {
+				known = new HashSet<>(crons.keySet());
+			}
+			for (Long id : known) {
+				if (!ids.contains(id)) {
+					unregister(id);
+				}
+			}
+			ids.removeAll(known);
+			for (Hook hook : repository.findAll(ids)) {
+				cache.put(hook);
+				register(hook);
+			}
+			for (Hook hook : repository.findByModifiedGreaterThan(Math.max(modified - slack, 0))) {
+				// The snapshot may be from before an edit made through another node
+				cache.put(hook);
+				register(hook);
+			}
 		}
-		for (Hook hook : repository.findAll()) {
-			if (!hooks.contains(hook.getId())) {
-				hooks.add(hook.getId());
-				scheduler.addTask(getTask(hook.getId()), hook.getCron());
+		catch (Exception e) {
+			logger.info("Sync failed: " + e.getMessage());
+		}
+	}
+
+	private void catchUp(int partition, long granted) {
+		// Firings that were due between the old leader's last tick and this grant (the
+		// regular ticks only fire what is due after it). Each hook is claimed by moving
+		// its fired mark forward before the pings go out, so a further failover does not
+		// repeat them.
+		if (misfire == Misfire.SKIP) {
+			return;
+		}
+		try {
+			for (Hook hook : repository.findFiredInPartition(partitions.getCount(),
+					partition)) {
+				if (partitions.getGranted(partition) != granted) {
+					// Lost (or lost and got back) in the meantime
+					return;
+				}
+				catchUp(hook, granted);
 			}
 		}
+		catch (Exception e) {
+			logger.info("Catch up failed: " + e.getMessage());
+		}
+	}
+
+	void catchUp(Hook hook, long granted) {
+		CronSequenceGenerator generator;
+		try {
+			generator = new CronSequenceGenerator(hook.getCron());
+		}
+		catch (IllegalArgumentException e) {
+			return;
+		}
+		int count = 0;
+		// The fired mark is a cron instant, but the firing for it comes after the jitter
+		long offset = jitter.offset(hook.getId());
+		Date last = new Date(hook.getFired());
+		Date next = generator.next(last);
+		while (next.getTime() + offset < granted && count < MAX_MISFIRES) {
+			count++;
+			last = next;
+			next = generator.next(last);
+		}
+		if (count == 0) {
+			return;
+		}
+		long version = hook.getVersion();
+		if (!writer.claim(hook.getId(), version, last.getTime())) {
+			logger.info("Rejected: stale version " + version + " for hook " + hook.getId());
+			cache.evict(hook.getId());
+			return;
+		}
+		cache.advance(hook.getId(), version, last.getTime());
+		logger.info("Catching up: " + hook + " (" + count + " missed)");
+		replay(hook, partitions.partition(hook.getId()),
+				misfire == Misfire.ALL ? count : 1);
+	}
+
+	private void replay(Hook hook, int partition, int remaining) {
+		if (remaining <= 0) {
+			return;
+		}
+		// One at a time: the next one goes out when this one completes, so the replays
+		// stay within the dispatcher's limit on pings in flight per hook
+		try {
+			dispatcher.dispatch(hook, tokens.next(partition),
+					result -> replay(hook, partition, remaining - 1), e -> {
+						logger.info("Missed: " + e.getMessage());
+						replay(hook, partition, remaining - 1);
+					});
+		}
+		catch (Exception e) {
+			// Rejected before it went out (e.g. a regular firing is still in flight)
+			logger.info("Missed " + remaining + " replays of " + hook + ": "
+					+ e.getMessage());
+		}
 	}
 
 	private Runnable getTask(Long id) {
-		return () -> {
-			Hook hook = repository.findOne(id);
+		// The firing is pending until its ping completes, so ticks for a slow hook are
+		// coalesced instead of piling up behind it
+		long offset = jitter.offset(id);
+		return admission.firing(id, offset, (instant, done) -> {
+			if (!partitions.isHeld(id, instant + offset)) {
+				done.run();
+				return;
+			}
+			Hook hook = cache.get(id);
+			if (hook == null) {
+				done.run();
+				return;
+			}
 			long version = hook.getVersion();
 			try {
-				checkVersion(hook, version);
+				checkVersion(id, version);
 				logger.info("Pinging: " + hook);
-				restTemplate.exchange(hook.getUri(), hook.getMethod(), null, Map.class);
-				updateVersion(hook, version);
+				dispatcher.dispatch(hook, tokens.next(partitions.partition(id)),
+						result -> complete(hook, version, instant, done), e -> {
+							logger.info("Missed: " + e.getMessage());
+							done.run();
+						});
 			}
 			catch (Exception e) {
 				// Don't care
 				logger.info("Missed: " + e.getMessage());
+				done.run();
 			}
-		};
+		});
+	}
+
+	private void complete(Hook hook, long version, long fired, Runnable done) {
+		try {
+			updateVersion(hook, version, fired);
+		}
+		catch (Exception e) {
+			// Don't care
+			logger.info("Missed: " + e.getMessage());
+		}
+		finally {
+			done.run();
+		}
 	}
 
-	private void checkVersion(Hook hook, long version) {
-		Hook check = repository.findOne(hook.getId());
-		if (check.getVersion() != version) {
+	private void checkVersion(Long id, long version) {
+		// The one read per firing, and only of the version: a deposed leader (or a stale
+		// snapshot) finds it has moved on and does not ping
+		Long check = repository.findVersion(id);
+		if (check == null || check != version) {
+			metrics.conflict();
+			cache.evict(id);
 			throw new RuntimeException("Version does not match: expected " + version
-					+ " but found " + check.getVersion());
+					+ " but found " + check);
 		}
 	}
 
-	private void updateVersion(Hook hook, long version) {
-		hook.setVersion(version + 1);
-		repository.save(hook);
+	private void updateVersion(Hook hook, long version, long fired) {
+		// The snapshot moves on when the write goes through, not before
+		writer.updateVersion(hook.getId(), version, fired);
+	}
+
+	enum Misfire {
+		ONCE, ALL, SKIP;
 	}
 
 }
 
 @RepositoryRestResource
 interface HookRepository extends PagingAndSortingRepository<Hook, Long> {
+
+	@RestResource(exported = false)
+	List<Hook> findByModifiedGreaterThan(long modified);
+
+	@RestResource(exported = false)
+	@Query("select h.id from Hook h")
+	List<Long> findAllIds();
+
+	@RestResource(exported = false)
+	@Query("select h.version from Hook h where h.id = :id")
+	Long findVersion(@Param("id") Long id);
+
+	/**
+	 * The hooks in a partition (see {@link HookPartitions#partition(Long)}) that have a
+	 * schedule and have fired at least once.
+	 */
+	@RestResource(exported = false)
+	@Query("select h from Hook h where mod(h.id, :count) = :partition and h.fired > 0 "
+			+ "and h.cron is not null")
+	List<Hook> findFiredInPartition(@Param("count") int count,
+			@Param("partition") int partition);
+
 }
 
 @Entity
-class Hook {
+class Hook implements HookTarget {
 
 	@Id
 	@GeneratedValue
@@ -219,14 +468,37 @@ class Hook {
 		this.cron = cron;
 	}
 
+	/**
+	 * A copy of this hook one version on, having fired at this instant.
+	 */
+	Hook advance(long fired) {
+		Hook hook = new Hook(method, uri, cron);
+		hook.id = id;
+		hook.response = response;
+		hook.modified = modified;
+		hook.version = version + 1;
+		hook.fired = fired;
+		return hook;
+	}
+
 	private String cron;
 
 	private String uri;
 
 	private HttpMethod method = HttpMethod.POST;
 
+	/**
+	 * What to do with the response body: health-style hooks only need the status, so
+	 * by default the body is not read at all.
+	 */
+	private Response response = Response.STATUS;
+
 	private long version = 0L;
 
+	private long modified = 0L;
+
+	private long fired = 0L;
+
 	public long getVersion() {
 		return version;
 	}
@@ -239,6 +511,22 @@ class Hook {
 		return id;
 	}
 
+	public long getModified() {
+		return modified;
+	}
+
+	public void setModified(long modified) {
+		this.modified = modified;
+	}
+
+	public long getFired() {
+		return fired;
+	}
+
+	public void setFired(long fired) {
+		this.fired = fired;
+	}
+
 	public String getCron() {
 		return cron;
 	}
@@ -263,9 +551,148 @@ class Hook {
 		this.method = method;
 	}
 
+	public Response getResponse() {
+		return response == null ? Response.STATUS : response;
+	}
+
+	public void setResponse(Response response) {
+		this.response = response;
+	}
+
 	@Override
 	public String toString() {
 		return method + " [id=" + id + ", uri=" + uri + "]";
 	}
 
-}
\ No newline at end of file
+}
+
+@RepositoryRestResource
+interface FiringRepository extends Repository<Firing, Long> {
+
+	Page<Firing> findAll(Pageable pageable);
+
+	Firing findOne(Long id);
+
+	Page<Firing> findByHookOrderByStartedDesc(@Param("hook") Long hook,
+			Pageable pageable);
+
+	Page<Firing> findByStartedBetweenOrderByStartedDesc(@Param("from") long from,
+			@Param("to") long to, Pageable pageable);
+
+}
+
+/**
+ * One ping of a hook, as recorded in the journal. Read only: the rows are inserted (and
+ * eventually deleted) by the {@link HookJournal}.
+ */
+@Entity
+@Table(indexes = { @Index(columnList = "started"), @Index(columnList = "hook,started") })
+class Firing {
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private Long id;
+
+	private Long hook;
+
+	private long token;
+
+	private String node;
+
+	private long started;
+
+	private long duration;
+
+	private int status;
+
+	private String detail;
+
+	@SuppressWarnings("unused")
+	private Firing() {
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public Long getHook() {
+		return hook;
+	}
+
+	public long getToken() {
+		return token;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public long getStarted() {
+		return started;
+	}
+
+	public long getDuration() {
+		return duration;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getDetail() {
+		return detail;
+	}
+
+}
+
+/**
+ * The fencing token epoch of each partition, see {@link HookTokens} (one row per
+ * partition).
+ */
+@Entity
+class Fence {
+
+	@Id
+	private Integer id;
+
+	private long epoch;
+
+	@SuppressWarnings("unused")
+	private Fence() {
+	}
+
+	public Integer getId() {
+		return id;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+}
+
+/**
+ * An instance taking part in the partition elections, with the last time it checked in
+ * (one row per instance, see {@link HookPartitions}).
+ */
+@Entity
+class Node {
+
+	@Id
+	private String id;
+
+	private long heartbeat;
+
+	@SuppressWarnings("unused")
+	private Node() {
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public long getHeartbeat() {
+		return heartbeat;
+	}
+
+}
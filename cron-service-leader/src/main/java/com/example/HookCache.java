@@ -0,0 +1,74 @@
+package com.example;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+import org.springframework.data.rest.core.event.AbstractRepositoryEventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Read-through snapshots of {@link Hook} keyed by id. A snapshot is only replaced by
+ * one with the same or a later version, and is evicted on REST changes to the hook
+ * (changes made through other nodes are put here when they are synced). Snapshots are
+ * never changed in place, so a firing can keep using the one it read.
+ */
+@Component
+class HookCache extends AbstractRepositoryEventListener<Hook> {
+
+	private final HookRepository repository;
+	private final ConcurrentMap<Long, Hook> snapshots = new ConcurrentHashMap<>();
+
+	public HookCache(HookRepository repository) {
+		this.repository = repository;
+	}
+
+	public Hook get(Long id) {
+		Hook hook = snapshots.get(id);
+		if (hook == null) {
+			hook = repository.findOne(id);
+			if (hook != null) {
+				put(hook);
+			}
+		}
+		return hook;
+	}
+
+	public void put(Hook hook) {
+		snapshots.merge(hook.getId(), hook,
+				(old, update) -> update.getVersion() >= old.getVersion() ? update : old);
+	}
+
+	/**
+	 * The version of a hook was moved on from this one in the store, by a firing at this
+	 * instant: replace the snapshot with the next version, unless it has changed since.
+	 */
+	public void advance(Long id, long version, long fired) {
+		snapshots.computeIfPresent(id,
+				(key, hook) -> hook.getVersion() == version ? hook.advance(fired) : hook);
+	}
+
+	public void evict(Long id) {
+		snapshots.remove(id);
+	}
+
+	public void evictAll(Predicate<Long> ids) {
+		snapshots.keySet().removeIf(ids);
+	}
+
+	@Override
+	protected void onAfterCreate(Hook hook) {
+		evict(hook.getId());
+	}
+
+	@Override
+	protected void onAfterSave(Hook hook) {
+		evict(hook.getId());
+	}
+
+	@Override
+	protected void onAfterDelete(Hook hook) {
+		evict(hook.getId());
+	}
+
+}
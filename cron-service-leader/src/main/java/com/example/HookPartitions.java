@@ -0,0 +1,373 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.function.IntConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.integration.leader.Context;
+import org.springframework.integration.leader.DefaultCandidate;
+import org.springframework.integration.leader.event.DefaultLeaderEventPublisher;
+import org.springframework.integration.support.leader.LockRegistryLeaderInitiator;
+import org.springframework.integration.support.locks.LockRegistry;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Splits the hook id space into a fixed number of partitions, each with its own leader
+ * election, so that every instance in the cluster can be leader for some of the hooks.
+ * The {@link Scheduler} runs on every instance, leader or not, so a follower is a warm
+ * standby: a firing only does any work if its hook's partition is held here, and
+ * taking over a partition just opens that gate (after moving its {@link HookTokens} on
+ * to a new epoch).
+ * <p>
+ * Each instance checks in to the node table on every heart beat and works out its
+ * share of the partitions (the count divided by the live nodes, rounded up). It does
+ * not try to take a partition while it holds its share, and it yields the ones over its
+ * share, so a node that joins (or comes back) picks up the partitions the others let go.
+ */
+@Component
+class HookPartitions implements SmartLifecycle, PublicMetrics, DisposableBean {
+
+	private static Logger logger = LoggerFactory.getLogger(HookPartitions.class);
+
+	private static final String HEARTBEAT_QUERY = "UPDATE node SET heartbeat=? WHERE id=?";
+
+	private static final String INSERT_QUERY = "INSERT INTO node (id, heartbeat) "
+			+ "VALUES (?, ?)";
+
+	private static final String EXPIRE_QUERY = "DELETE FROM node WHERE heartbeat<?";
+
+	private static final String COUNT_QUERY = "SELECT COUNT(*) FROM node";
+
+	private static final String DELETE_QUERY = "DELETE FROM node WHERE id=?";
+
+	private final int count;
+	private final String id = UUID.randomUUID().toString();
+	private final Scheduler scheduler;
+	private final HookTokens tokens;
+	private final JdbcTemplate template;
+	private final long heartBeat;
+	private final long nodeTtl;
+	private final List<LockRegistryLeaderInitiator> initiators = new ArrayList<>();
+	private final Set<Integer> held = ConcurrentHashMap.newKeySet();
+	private final Map<Integer, Long> granted = new ConcurrentHashMap<>();
+	private final Set<Integer> yielding = ConcurrentHashMap.newKeySet();
+	private final List<IntConsumer> grantListeners = new CopyOnWriteArrayList<>();
+	private final ScheduledExecutorService balancer = Executors
+			.newSingleThreadScheduledExecutor(r -> new Thread(r, "hook-partitions"));
+	private volatile ScheduledFuture<?> balancing;
+	private volatile int share;
+	private volatile boolean running = false;
+	private volatile long handover = -1L;
+
+	public HookPartitions(LockRegistry locks, Scheduler scheduler, HookTokens tokens,
+			JdbcTemplate template, ApplicationEventPublisher applicationEventPublisher,
+			@Value("${hooks.partitions:1}") int count,
+			@Value("${hooks.leader.heart-beat:500}") long heartBeat,
+			@Value("${hooks.leader.busy-wait:50}") long busyWait,
+			@Value("${hooks.partitions.node-ttl:5000}") long nodeTtl) {
+		this.scheduler = scheduler;
+		this.tokens = tokens;
+		this.template = template;
+		this.count = count;
+		this.heartBeat = heartBeat;
+		this.nodeTtl = nodeTtl;
+		this.share = count;
+		for (int partition = 0; partition < count; partition++) {
+			int index = partition;
+			LockRegistry registry = key -> new ShareLock(locks.obtain(key), index);
+			LockRegistryLeaderInitiator initiator = new LockRegistryLeaderInitiator(
+					registry, new PartitionCandidate(id, partition));
+			initiator.setLeaderEventPublisher(
+					new DefaultLeaderEventPublisher(applicationEventPublisher));
+			initiator.setHeartBeatMillis(heartBeat);
+			initiator.setBusyWaitMillis(busyWait);
+			initiators.add(initiator);
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * The partition of a hook: its id modulo the count, which a query can work out too.
+	 */
+	public int partition(Long id) {
+		return (int) Math.floorMod(id, (long) count);
+	}
+
+	public boolean isHeld(Long id) {
+		return held.contains(partition(id));
+	}
+
+	/**
+	 * Whether the firing due at this time (including its jitter) belongs to the leader
+	 * here: the hook's partition is held, and was already held when the firing was due.
+	 * Anything due before the grant is left to the catch up.
+	 */
+	public boolean isHeld(Long id, long due) {
+		Long time = granted.get(partition(id));
+		return time != null && time <= due;
+	}
+
+	/**
+	 * When the partition was granted here, or -1 if it is not held.
+	 */
+	public long getGranted(int partition) {
+		return granted.getOrDefault(partition, -1L);
+	}
+
+	/**
+	 * The partitions held here right now.
+	 */
+	public Set<Integer> getHeld() {
+		return Collections.unmodifiableSet(held);
+	}
+
+	/**
+	 * Milliseconds it took to go live the last time a partition was granted here
+	 * (including any misfire catch up), or -1 if none has been granted yet.
+	 */
+	public long getHandover() {
+		return handover;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		return Arrays.<Metric<?>>asList(new Metric<>("hooks.leader.partitions", held.size()),
+				new Metric<>("hooks.leader.share", share),
+				new Metric<>("hooks.leader.handover", handover));
+	}
+
+	/**
+	 * Register a callback for when a partition is granted to this instance (after its
+	 * firings are live). Called on the leader election thread, so anything slow should
+	 * be handed off.
+	 */
+	public void addGrantListener(IntConsumer listener) {
+		grantListeners.add(listener);
+	}
+
+	private void grant(int partition) {
+		long start = System.nanoTime();
+		// Anything the previous leader still sends is from an older epoch
+		tokens.grant(partition);
+		granted.put(partition, System.currentTimeMillis());
+		held.add(partition);
+		for (IntConsumer listener : grantListeners) {
+			listener.accept(partition);
+		}
+		handover = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		logger.info("Granted partition " + partition + " in " + handover
+				+ "ms (holding " + held + ")");
+	}
+
+	private void revoke(int partition) {
+		held.remove(partition);
+		granted.remove(partition);
+		logger.info("Revoked partition " + partition + " (holding " + held + ")");
+	}
+
+	/**
+	 * Check in, work out the share from the nodes that are still checking in, and yield
+	 * any partitions held over it.
+	 */
+	private void balance() {
+		try {
+			long now = System.currentTimeMillis();
+			if (template.update(HEARTBEAT_QUERY, now, id) == 0) {
+				template.update(INSERT_QUERY, id, now);
+			}
+			template.update(EXPIRE_QUERY, now - nodeTtl);
+			int nodes = Math.max(template.queryForObject(COUNT_QUERY, Integer.class), 1);
+			share = (count + nodes - 1) / nodes;
+		}
+		catch (Exception e) {
+			// Keep the last share: the elections still work without it
+			logger.info("Balance failed: " + e.getMessage());
+			return;
+		}
+		int extra = held.size() - share;
+		for (Integer partition : held) {
+			if (extra-- <= 0) {
+				break;
+			}
+			// Let go at the next renewal (see ShareLock)
+			if (yielding.add(partition)) {
+				logger.info("Yielding partition " + partition + " (share " + share + ")");
+			}
+		}
+	}
+
+	@Override
+	public void start() {
+		scheduler.start();
+		// Check in before the elections, so the first node up doesn't take everything
+		balance();
+		balancing = balancer.scheduleWithFixedDelay(this::balance, heartBeat, heartBeat,
+				TimeUnit.MILLISECONDS);
+		for (LockRegistryLeaderInitiator initiator : initiators) {
+			initiator.start();
+		}
+		running = true;
+	}
+
+	@Override
+	public void stop() {
+		if (balancing != null) {
+			balancing.cancel(false);
+		}
+		for (LockRegistryLeaderInitiator initiator : initiators) {
+			initiator.stop();
+		}
+		try {
+			template.update(DELETE_QUERY, id);
+		}
+		catch (Exception e) {
+			// It will expire
+			logger.info("Failed to check out: " + e.getMessage());
+		}
+		scheduler.stop();
+		running = false;
+	}
+
+	@Override
+	public void stop(Runnable callback) {
+		stop();
+		callback.run();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public boolean isAutoStartup() {
+		return true;
+	}
+
+	@Override
+	public int getPhase() {
+		return Integer.MAX_VALUE - 1000;
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		balancer.shutdownNow();
+		for (LockRegistryLeaderInitiator initiator : initiators) {
+			initiator.destroy();
+		}
+	}
+
+	private class PartitionCandidate extends DefaultCandidate {
+
+		private final int partition;
+
+		public PartitionCandidate(String id, int partition) {
+			super(id, "hooks-" + partition);
+			this.partition = partition;
+		}
+
+		@Override
+		public void onGranted(Context ctx) {
+			super.onGranted(ctx);
+			grant(partition);
+		}
+
+		@Override
+		public void onRevoked(Context ctx) {
+			revoke(partition);
+			super.onRevoked(ctx);
+			if (yielding.remove(partition) && running) {
+				// The election ends with a revoke, so start another one
+				balancer.execute(ctx::yield);
+			}
+		}
+
+	}
+
+	/**
+	 * The lock for one partition's election, which doesn't try to take the partition
+	 * while this node already holds its share (a leader renewing the lock still can).
+	 * A leader that is yielding the partition is interrupted at its next renewal from
+	 * here rather than by {@link Context#yield()}, which interrupts whatever the election
+	 * thread is doing (possibly in the middle of a statement on the lock) and can leave
+	 * the lock held.
+	 */
+	private class ShareLock implements Lock {
+
+		private final Lock delegate;
+		private final int partition;
+
+		ShareLock(Lock delegate, int partition) {
+			this.delegate = delegate;
+			this.partition = partition;
+		}
+
+		@Override
+		public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+			if (yielding.contains(partition)) {
+				if (held.contains(partition)) {
+					throw new InterruptedException("Yielding partition " + partition);
+				}
+				yielding.remove(partition);
+			}
+			if (!held.contains(partition) && held.size() >= share) {
+				unit.sleep(time);
+				return false;
+			}
+			return delegate.tryLock(time, unit);
+		}
+
+		@Override
+		public boolean tryLock() {
+			return delegate.tryLock();
+		}
+
+		@Override
+		public void lock() {
+			delegate.lock();
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			delegate.lockInterruptibly();
+		}
+
+		@Override
+		public void unlock() {
+			delegate.unlock();
+		}
+
+		@Override
+		public Condition newCondition() {
+			return delegate.newCondition();
+		}
+
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Fencing tokens for the pings, sent to the hook so it can reject a caller that has
+ * been deposed. Each partition has an epoch in the fence table, moved on every time the
+ * partition is granted, and a token is the epoch in the high bits and a count of the
+ * pings since the grant in the low bits. So every token issued for a partition after a
+ * handover is higher than any token its previous leader can still send, however many
+ * pings either of them makes.
+ */
+@Component
+class HookTokens {
+
+	private static final int COUNTER_BITS = 32;
+
+	private static final String ADVANCE_QUERY = "UPDATE fence SET epoch=epoch+1 WHERE id=?";
+
+	private static final String SELECT_QUERY = "SELECT epoch FROM fence WHERE id=?";
+
+	private static final String INSERT_QUERY = "INSERT INTO fence (id, epoch) VALUES (?, 0)";
+
+	private final JdbcTemplate template;
+	private final TransactionTemplate transaction;
+
+	// The last token issued for each partition held here
+	private final Map<Integer, Long> tokens = new HashMap<>();
+
+	public HookTokens(JdbcTemplate template,
+			PlatformTransactionManager transactionManager) {
+		this.template = template;
+		this.transaction = new TransactionTemplate(transactionManager);
+	}
+
+	/**
+	 * The next token for a partition (starting a new epoch if there isn't one since the
+	 * grant).
+	 */
+	public synchronized long next(int partition) {
+		Long token = tokens.get(partition);
+		if (token == null || (token + 1) >>> COUNTER_BITS != token >>> COUNTER_BITS) {
+			// No epoch since the grant, or the counter is used up
+			token = advance(partition) << COUNTER_BITS;
+		}
+		tokens.put(partition, ++token);
+		return token;
+	}
+
+	/**
+	 * Forget the epoch of a partition that has just been granted here, so its next token
+	 * starts a new one.
+	 */
+	public synchronized void grant(int partition) {
+		tokens.remove(partition);
+	}
+
+	private long advance(int partition) {
+		Long epoch = transaction.execute(status -> {
+			if (template.update(ADVANCE_QUERY, partition) == 0) {
+				return null;
+			}
+			return template.queryForObject(SELECT_QUERY, Long.class, partition);
+		});
+		if (epoch != null) {
+			return epoch;
+		}
+		try {
+			template.update(INSERT_QUERY, partition);
+		}
+		catch (DuplicateKeyException e) {
+			// Another node got there first
+		}
+		return advance(partition);
+	}
+
+}
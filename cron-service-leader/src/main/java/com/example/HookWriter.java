@@ -0,0 +1,150 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Write-behind for the version bump at the end of each firing (a catch up claims its
+ * firings synchronously instead, before they go out). Updates are queued and
+ * flushed as a JDBC batch in one transaction, when the queue reaches the batch size or
+ * on a short interval. Each row is still fenced on the expected version, so a stale
+ * writer's update matches no rows and is rejected, and only an update that goes through
+ * moves the cached snapshot on. A batch that fails is put back on the
+ * queue for the next flush, up to a maximum number of attempts, after which its updates
+ * are dropped (and counted) and their hooks are evicted from the cache.
+ */
+@Component
+class HookWriter implements InitializingBean, DisposableBean {
+
+	private static Logger logger = LoggerFactory.getLogger(HookWriter.class);
+
+	private static final String UPDATE_QUERY = "UPDATE hook SET version=?, fired=? "
+			+ "WHERE id=? AND version=?";
+
+	private final JdbcTemplate template;
+	private final TransactionTemplate transaction;
+	private final HookCache cache;
+	private final HookMetrics metrics;
+	private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+	private final ScheduledExecutorService flusher = Executors
+			.newSingleThreadScheduledExecutor(r -> new Thread(r, "hook-writer"));
+
+	@Value("${hooks.writer.interval:100}")
+	private long interval;
+
+	@Value("${hooks.writer.batch-size:500}")
+	private int batchSize;
+
+	@Value("${hooks.writer.max-attempts:50}")
+	private int maxAttempts;
+
+	public HookWriter(JdbcTemplate template, PlatformTransactionManager transactionManager,
+			HookCache cache, HookMetrics metrics) {
+		this.template = template;
+		this.transaction = new TransactionTemplate(transactionManager);
+		this.cache = cache;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		flusher.scheduleWithFixedDelay(this::flush, interval, interval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		flusher.shutdown();
+		flush();
+	}
+
+	/**
+	 * Move the version and the fired mark on now, rather than behind, and say whether
+	 * the version was still the expected one.
+	 */
+	public boolean claim(Long id, long version, long fired) {
+		return template.update(UPDATE_QUERY, version + 1, fired, id, version) > 0;
+	}
+
+	public void updateVersion(Long id, long version, long fired) {
+		queue.add(new Write(new Object[] { version + 1, fired, id, version }));
+		if (queue.size() >= batchSize) {
+			flusher.execute(this::flush);
+		}
+	}
+
+	synchronized void flush() {
+		List<Write> batch = new ArrayList<>();
+		while (queue.drainTo(batch, batchSize) > 0) {
+			List<Object[]> rows = new ArrayList<>();
+			for (Write write : batch) {
+				rows.add(write.row);
+			}
+			try {
+				int[] counts = transaction
+						.execute(status -> template.batchUpdate(UPDATE_QUERY, rows));
+				for (int i = 0; i < counts.length; i++) {
+					Object[] row = rows.get(i);
+					if (counts[i] == 0) {
+						cache.evict((Long) row[2]);
+						logger.info("Rejected: stale version " + row[3] + " for hook "
+								+ row[2]);
+					}
+					else {
+						cache.advance((Long) row[2], (Long) row[3], (Long) row[1]);
+					}
+				}
+			}
+			catch (Exception e) {
+				logger.info("Failed to write " + batch.size() + " versions: "
+						+ e.getMessage());
+				requeue(batch);
+				return;
+			}
+			batch.clear();
+		}
+	}
+
+	private void requeue(List<Write> batch) {
+		for (Write write : batch) {
+			if (++write.attempts < maxAttempts) {
+				queue.add(write);
+			}
+			else {
+				// Read it again next time, in case the write did go through
+				cache.evict((Long) write.row[2]);
+				metrics.unwritten();
+				logger.warn("Dropped the version " + write.row[0] + " of hook "
+						+ write.row[2] + " after " + write.attempts + " attempts");
+			}
+		}
+	}
+
+	private static class Write {
+
+		private final Object[] row;
+
+		private int attempts;
+
+		Write(Object[] row) {
+			this.row = row;
+		}
+
+	}
+
+}
@@ -0,0 +1 @@
+CREATE INDEX INT_LOCK_EXPIRY_IDX ON INT_LOCK (REGION, CREATED_DATE);
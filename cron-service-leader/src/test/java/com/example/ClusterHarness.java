@@ -0,0 +1,240 @@
+package com.example;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpMethod;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs several instances of an application in one JVM against a shared file-based H2
+ * database (with the "cloud" profile, so the JDBC locks are used where there are any).
+ * The hooks fire every second and ping an endpoint in the harness, which records when
+ * each ping arrives (and its fencing token), and the {@link Report} says how well the
+ * cluster covered the schedule.
+ */
+class ClusterHarness {
+
+	private final Class<?> application;
+	private final int nodes;
+	private final int hooks;
+	private final ConcurrentMap<Integer, List<long[]>> pings = new ConcurrentHashMap<>();
+	private final List<String> properties = new ArrayList<>();
+	private Consumer<List<ConfigurableApplicationContext>> inspector = contexts -> {
+	};
+	private boolean failback;
+
+	public ClusterHarness(Class<?> application, int nodes, int hooks) {
+		this.application = application;
+		this.nodes = nodes;
+		this.hooks = hooks;
+	}
+
+	/**
+	 * Extra properties for every node ("key=value", system properties still win).
+	 */
+	public ClusterHarness properties(String... properties) {
+		this.properties.addAll(Arrays.asList(properties));
+		return this;
+	}
+
+	/**
+	 * With failover, start a fresh node (against the same database) a quarter of the
+	 * window after the first one is shut down, so the cluster has to take it back in.
+	 */
+	public ClusterHarness failback() {
+		this.failback = true;
+		return this;
+	}
+
+	/**
+	 * A callback for the nodes that are still running at the end of the window, before
+	 * they are shut down.
+	 */
+	public ClusterHarness inspect(Consumer<List<ConfigurableApplicationContext>> inspector) {
+		this.inspector = inspector;
+		return this;
+	}
+
+	/**
+	 * Start the nodes and let them settle for the warmup, then measure for the window.
+	 * With failover, the first node (the one that was started first, so usually the
+	 * leader) is shut down half way through the window.
+	 */
+	public Report run(long warmup, long window, boolean failover) throws Exception {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/hooks/", exchange -> {
+			String path = exchange.getRequestURI().getPath();
+			int hook = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+			String token = exchange.getRequestHeaders().getFirst("X-Fencing-Token");
+			pings.computeIfAbsent(hook, key -> new CopyOnWriteArrayList<>())
+					.add(new long[] { System.currentTimeMillis(),
+							token == null ? 0 : Long.parseLong(token) });
+			byte[] body = "{}".getBytes();
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream stream = exchange.getResponseBody()) {
+				stream.write(body);
+			}
+		});
+		server.start();
+		String url = "jdbc:h2:file:" + new File("target/cluster", UUID.randomUUID().toString())
+				.getAbsolutePath() + ";DB_CLOSE_ON_EXIT=FALSE";
+		List<ConfigurableApplicationContext> contexts = new ArrayList<>();
+		try {
+			contexts.add(start(url));
+			HookRepository repository = contexts.get(0).getBean(HookRepository.class);
+			repository.deleteAll();
+			for (int hook = 0; hook < hooks; hook++) {
+				repository.save(new Hook(HttpMethod.GET, "http://localhost:"
+						+ server.getAddress().getPort() + "/hooks/" + hook, "* * * * * *"));
+			}
+			for (int node = 1; node < nodes; node++) {
+				contexts.add(start(url));
+			}
+			Thread.sleep(warmup);
+			long start = System.currentTimeMillis();
+			if (failover) {
+				Thread.sleep(window / 2);
+				contexts.remove(0).close();
+				if (failback) {
+					Thread.sleep(window / 4);
+					contexts.add(start(url));
+					Thread.sleep(window - window / 2 - window / 4);
+				}
+				else {
+					Thread.sleep(window - window / 2);
+				}
+			}
+			else {
+				Thread.sleep(window);
+			}
+			long end = System.currentTimeMillis();
+			inspector.accept(contexts);
+			return new Report(start, end);
+		}
+		finally {
+			for (ConfigurableApplicationContext context : contexts) {
+				context.close();
+			}
+			server.stop(0);
+		}
+	}
+
+	private ConfigurableApplicationContext start(String url) {
+		return new SpringApplicationBuilder(application).profiles("cloud")
+				.properties("spring.datasource.url=" + url,
+						"spring.jpa.hibernate.ddl-auto=update", "server.port=0",
+						"spring.jmx.enabled=false", "hooks.sync.cron=*/2 * * * * *",
+						"logging.level.com.example=WARN")
+				.properties(properties.toArray(new String[0])).run();
+	}
+
+	class Report {
+
+		private final double seconds;
+		private int firings;
+		private int duplicates;
+		private int missed;
+		private long gap;
+		private int stale;
+
+		Report(long start, long end) {
+			// Whole seconds inside the window: each is one planned firing per hook
+			long first = (start + 999) / 1000;
+			long last = end / 1000;
+			seconds = last - first;
+			for (int hook = 0; hook < hooks; hook++) {
+				SortedMap<Long, Integer> instants = new TreeMap<>();
+				long token = 0;
+				for (long[] ping : pings.getOrDefault(hook, new ArrayList<>())) {
+					long instant = ping[0] / 1000;
+					if (instant >= first && instant < last) {
+						instants.merge(instant, 1, Integer::sum);
+						firings++;
+						if (ping[1] <= token) {
+							stale++;
+						}
+					}
+					token = Math.max(token, ping[1]);
+				}
+				long previous = first - 1;
+				for (Map.Entry<Long, Integer> entry : instants.entrySet()) {
+					duplicates += entry.getValue() - 1;
+					gap = Math.max(gap, entry.getKey() - previous - 1);
+					previous = entry.getKey();
+				}
+				gap = Math.max(gap, last - 1 - previous);
+				missed += seconds - instants.size();
+			}
+		}
+
+		public double getFiringsPerSecond() {
+			return seconds > 0 ? firings / seconds : 0;
+		}
+
+		/**
+		 * Extra pings as a fraction of all the pings.
+		 */
+		public double getDuplicateRate() {
+			return firings > 0 ? (double) duplicates / firings : 0;
+		}
+
+		/**
+		 * Planned firings (hook and instant) with no ping at all.
+		 */
+		public int getMissed() {
+			return missed;
+		}
+
+		/**
+		 * Missed fraction of the planned firings.
+		 */
+		public double getMissedRate() {
+			return seconds > 0 ? missed / (seconds * hooks) : 0;
+		}
+
+		/**
+		 * The longest run of consecutive missed instants for any hook (seconds): with
+		 * failover this is the gap while the leadership moved.
+		 */
+		public long getGap() {
+			return gap;
+		}
+
+		/**
+		 * Pings that arrived with a fencing token no higher than an earlier one for the
+		 * same hook (so the hook would have rejected them).
+		 */
+		public int getStale() {
+			return stale;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%s: %d nodes, %d hooks, %.0fs: %.1f firings/s, %.3f duplicate rate, "
+							+ "%d missed (%.3f), longest gap %ds, %d stale tokens",
+					application.getSimpleName(), nodes, hooks, seconds,
+					getFiringsPerSecond(), getDuplicateRate(), missed, getMissedRate(), gap,
+					stale);
+		}
+
+	}
+
+}
@@ -0,0 +1,61 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.ClusterHarness.Report;
+
+public class ClusterTests {
+
+	private static Logger logger = LoggerFactory.getLogger(ClusterTests.class);
+
+	@Test
+	public void threeNodesWithFailover() throws Exception {
+		ClusterHarness cluster = new ClusterHarness(CronServiceLeaderApplication.class, 3, 20);
+		Report report = cluster.run(10000, 20000, true);
+		logger.info(report.toString());
+		assertThat(report.getFiringsPerSecond()).isGreaterThan(0);
+		assertThat(report.getMissedRate()).as(report.toString()).isLessThan(0.05);
+		assertThat(report.getDuplicateRate()).as(report.toString()).isLessThan(0.01);
+		assertThat(report.getStale()).isZero();
+	}
+
+	@Test
+	public void partitionsWithFailback() throws Exception {
+		ClusterHarness cluster = new ClusterHarness(CronServiceLeaderApplication.class, 3, 20)
+				.properties("hooks.partitions=4").failback();
+		Report report = cluster.run(10000, 20000, true);
+		logger.info(report.toString());
+		assertThat(report.getMissedRate()).as(report.toString()).isLessThan(0.05);
+		assertThat(report.getDuplicateRate()).as(report.toString()).isLessThan(0.01);
+		assertThat(report.getStale()).isZero();
+	}
+
+	@Test
+	public void partitionsAreSpreadOverTheNodes() throws Exception {
+		List<Set<Integer>> held = new ArrayList<>();
+		ClusterHarness cluster = new ClusterHarness(CronServiceLeaderApplication.class, 3, 20)
+				.properties("hooks.partitions=6").inspect(contexts -> contexts.forEach(
+						context -> held.add(
+								new HashSet<>(context.getBean(HookPartitions.class).getHeld()))));
+		Report report = cluster.run(10000, 10000, false);
+		logger.info(report + ", partitions held " + held);
+		assertThat(held).hasSize(3);
+		// Six partitions over three nodes: two each
+		for (Set<Integer> partitions : held) {
+			assertThat(partitions).hasSize(2);
+		}
+		assertThat(report.getMissedRate()).as(report.toString()).isLessThan(0.05);
+		assertThat(report.getDuplicateRate()).as(report.toString()).isLessThan(0.01);
+		assertThat(report.getStale()).isZero();
+	}
+
+}
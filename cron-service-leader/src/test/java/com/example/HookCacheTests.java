@@ -0,0 +1,49 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class HookCacheTests {
+
+	private final HookRepository repository = mock(HookRepository.class);
+
+	private final HookCache cache = new HookCache(repository);
+
+	@Test
+	public void advanceReplacesTheSnapshot() {
+		Hook hook = hook(3L);
+		when(repository.findOne(1L)).thenReturn(hook);
+		assertThat(cache.get(1L)).isSameAs(hook);
+		cache.advance(1L, 3L, 1000L);
+		Hook advanced = cache.get(1L);
+		assertThat(advanced.getVersion()).isEqualTo(4L);
+		assertThat(advanced.getFired()).isEqualTo(1000L);
+		assertThat(advanced.getUri()).isEqualTo(hook.getUri());
+		// A firing still holding the old snapshot sees it unchanged
+		assertThat(hook.getVersion()).isEqualTo(3L);
+		assertThat(hook.getFired()).isEqualTo(0L);
+	}
+
+	@Test
+	public void advanceFromAnotherVersionIsIgnored() {
+		Hook hook = hook(5L);
+		when(repository.findOne(1L)).thenReturn(hook);
+		cache.get(1L);
+		cache.advance(1L, 3L, 1000L);
+		assertThat(cache.get(1L)).isSameAs(hook);
+	}
+
+	private static Hook hook(long version) {
+		Hook hook = new Hook(HttpMethod.GET, "http://localhost:8080/health",
+				"*/10 * * * * *");
+		ReflectionTestUtils.setField(hook, "id", 1L);
+		hook.setVersion(version);
+		return hook;
+	}
+
+}
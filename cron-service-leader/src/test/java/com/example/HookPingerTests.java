@@ -0,0 +1,111 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.concurrent.FailureCallback;
+import org.springframework.util.concurrent.SuccessCallback;
+
+public class HookPingerTests {
+
+	// A minute boundary, in any time zone with a whole number of minutes offset
+	private static final long FIRED = 60000L * 26000000L;
+
+	private final HookDispatcher dispatcher = mock(HookDispatcher.class);
+
+	private final HookWriter writer = mock(HookWriter.class);
+
+	private final List<Object> pending = new ArrayList<>();
+
+	@Test
+	public void everyMissedFiringIsReplayed() {
+		HookPinger pinger = pinger("all");
+		pinger.catchUp(hook(), FIRED + 5 * 60000L + 1);
+		verify(writer).claim(1L, 3L, FIRED + 5 * 60000L);
+		int pings = complete(true);
+		assertThat(pings).isEqualTo(5);
+	}
+
+	@Test
+	public void replaysCarryOnAfterAFailure() {
+		HookPinger pinger = pinger("all");
+		pinger.catchUp(hook(), FIRED + 3 * 60000L + 1);
+		assertThat(complete(false)).isEqualTo(3);
+	}
+
+	@Test
+	public void onlyOneReplayByDefault() {
+		HookPinger pinger = pinger("once");
+		pinger.catchUp(hook(), FIRED + 5 * 60000L + 1);
+		assertThat(complete(true)).isEqualTo(1);
+	}
+
+	@Test
+	public void replaysStopWhenRejected() {
+		HookPinger pinger = pinger("all");
+		doThrow(new IllegalStateException("Too many pings in flight")).when(dispatcher)
+				.dispatch(any(HookTarget.class), anyLong(), any(), any());
+		pinger.catchUp(hook(), FIRED + 5 * 60000L + 1);
+		verify(dispatcher, times(1)).dispatch(any(HookTarget.class), anyLong(), any(),
+				any());
+	}
+
+	/**
+	 * Complete the pings one at a time, checking that there is never more than one in
+	 * flight, and return how many there were.
+	 */
+	@SuppressWarnings("unchecked")
+	private int complete(boolean success) {
+		int count = 0;
+		while (!pending.isEmpty()) {
+			assertThat(pending).hasSize(2);
+			count++;
+			SuccessCallback<Object> onSuccess = (SuccessCallback<Object>) pending.remove(0);
+			FailureCallback onFailure = (FailureCallback) pending.remove(0);
+			if (success) {
+				onSuccess.onSuccess(null);
+			}
+			else {
+				onFailure.onFailure(new RuntimeException("Planned"));
+			}
+		}
+		return count;
+	}
+
+	private HookPinger pinger(String misfire) {
+		when(writer.claim(eq(1L), anyLong(), anyLong())).thenReturn(true);
+		doAnswer(invocation -> {
+			pending.add(invocation.getArguments()[2]);
+			pending.add(invocation.getArguments()[3]);
+			return null;
+		}).when(dispatcher).dispatch(any(HookTarget.class), anyLong(), any(), any());
+		return new HookPinger(mock(HookRepository.class), mock(HookCache.class),
+				dispatcher, mock(HookMetrics.class), writer, mock(HookPartitions.class),
+				mock(HookTokens.class), mock(HookAdmission.class), mock(HookJitter.class),
+				mock(Scheduler.class), misfire);
+	}
+
+	private static Hook hook() {
+		Hook hook = new Hook(HttpMethod.GET, "http://localhost:8080/health",
+				"0 * * * * *");
+		ReflectionTestUtils.setField(hook, "id", 1L);
+		hook.setVersion(3L);
+		hook.setFired(FIRED);
+		return hook;
+	}
+
+}
@@ -0,0 +1,68 @@
+package com.example;
+
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+public class HookWriterTests {
+
+	private final JdbcTemplate template = mock(JdbcTemplate.class);
+
+	private final HookCache cache = mock(HookCache.class);
+
+	private final HookMetrics metrics = mock(HookMetrics.class);
+
+	private HookWriter writer;
+
+	@Before
+	public void init() {
+		writer = new HookWriter(template, mock(PlatformTransactionManager.class), cache,
+				metrics);
+		ReflectionTestUtils.setField(writer, "batchSize", 500);
+		ReflectionTestUtils.setField(writer, "maxAttempts", 3);
+	}
+
+	@Test
+	public void failedWriteIsRetried() {
+		when(template.batchUpdate(anyString(), anyListOf(Object[].class)))
+				.thenThrow(new DataAccessResourceFailureException("Down"))
+				.thenReturn(new int[] { 1 });
+		writer.updateVersion(1L, 3L, 1000L);
+		writer.flush();
+		verify(cache, never()).advance(1L, 3L, 1000L);
+		writer.flush();
+		verify(template, times(2)).batchUpdate(anyString(), anyListOf(Object[].class));
+		verify(cache).advance(1L, 3L, 1000L);
+		verify(metrics, never()).unwritten();
+		writer.flush();
+		verify(template, times(2)).batchUpdate(anyString(), anyListOf(Object[].class));
+	}
+
+	@Test
+	public void failedWriteIsDroppedAfterTheMaximumAttempts() {
+		when(template.batchUpdate(anyString(), anyListOf(Object[].class)))
+				.thenThrow(new DataAccessResourceFailureException("Down"));
+		writer.updateVersion(1L, 3L, 1000L);
+		writer.flush();
+		writer.flush();
+		verify(metrics, never()).unwritten();
+		writer.flush();
+		verify(metrics).unwritten();
+		verify(cache).evict(1L);
+		verify(cache, never()).advance(1L, 3L, 1000L);
+		writer.flush();
+		verify(template, times(3)).batchUpdate(anyString(), anyListOf(Object[].class));
+	}
+
+}
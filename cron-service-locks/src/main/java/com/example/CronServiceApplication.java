@@ -1,38 +1,49 @@
 package com.example;
 
-import java.io.Closeable;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.Repository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+import org.springframework.data.rest.core.annotation.RestResource;
+import org.springframework.data.rest.core.event.AbstractRepositoryEventListener;
 import org.springframework.http.HttpMethod;
-import org.springframework.integration.jdbc.lock.JdbcLockRegistry;
-import org.springframework.integration.jdbc.lock.LockRepository;
 import org.springframework.integration.support.locks.DefaultLockRegistry;
 import org.springframework.integration.support.locks.LockRegistry;
-import org.springframework.scheduling.annotation.SchedulingConfigurer;
-import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.RestTemplate;
 
 @SpringBootApplication
 public class CronServiceApplication {
@@ -53,64 +64,95 @@ class DefaultLockConfiguration {
 
 @Configuration
 @Profile("cloud")
-@ComponentScan(basePackageClasses = LockRepository.class)
+@ConditionalOnProperty(prefix = "hooks.locks", name = "backend", havingValue = "jdbc",
+		matchIfMissing = true)
 class JdbcLockConfiguration {
 
 	@Bean
-	public JdbcLockRegistry jdbcLockRegistry(LockRepository lockRepository) {
-		return new JdbcLockRegistry(lockRepository);
+	public BatchLockRepository lockRepository(DataSource dataSource,
+			@Value("${hooks.locks.keep-leases:true}") boolean keepLeases) {
+		BatchLockRepository repository = new BatchLockRepository(dataSource);
+		repository.setKeepLeases(keepLeases);
+		return repository;
 	}
 
-}
-
-@Component
-class Scheduler implements SchedulingConfigurer, Closeable {
-
-	private ScheduledTaskRegistrar taskRegistrar;
-	private ExecutorService pool;
-
-	@Override
-	public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
-		this.taskRegistrar = taskRegistrar;
+	@Bean
+	public BatchLockRegistry jdbcLockRegistry(BatchLockRepository lockRepository) {
+		return new BatchLockRegistry(lockRepository);
 	}
 
-	public void addTask(Runnable task, String expression) {
-		taskRegistrar.addCronTask(task, expression);
+	@Bean
+	public LockLeases lockLeases(BatchLockRepository lockRepository,
+			HookMetrics metrics) {
+		return new LockLeases(lockRepository, metrics);
 	}
 
-	public void start() {
-		pool = Executors.newScheduledThreadPool(10);
-		taskRegistrar.setScheduler(pool);
-		taskRegistrar.afterPropertiesSet();
-	}
+}
 
-	public void stop() {
-		taskRegistrar.destroy();
-		pool.shutdown();
+@Configuration
+@Profile("cloud")
+@ConditionalOnProperty(prefix = "hooks.locks", name = "backend", havingValue = "server")
+class LockServerConfiguration {
+
+	@Bean(initMethod = "start")
+	@ConditionalOnProperty(prefix = "hooks.lock-server", name = "embedded",
+			havingValue = "true")
+	public LockServer lockServer(@Value("${hooks.lock-server.port:7077}") int port,
+			@Value("${hooks.lock-server.bind-address:127.0.0.1}") String bindAddress,
+			@Value("${hooks.lock-server.ttl:10000}") long ttl) {
+		// No authentication: only reachable from this host unless configured otherwise
+		return new LockServer(bindAddress, port, ttl);
 	}
 
-	@Override
-	public void close() throws IOException {
-		stop();
+	@Bean
+	public LockServerRegistry lockServerRegistry(
+			@Value("${hooks.lock-server.address:localhost:7077}") String address,
+			@Value("${hooks.lock-server.ttl:10000}") long ttl) {
+		return new LockServerRegistry(address, ttl);
 	}
 
 }
 
 @Component
-class HookPinger implements CommandLineRunner {
+class HookPinger extends AbstractRepositoryEventListener<Hook>
+		implements CommandLineRunner {
 
 	private static Logger logger = LoggerFactory.getLogger(HookPinger.class);
 
+	private static final int JITTER_STEPS = 10;
+
 	private final HookRepository repository;
+	private final HookCache cache;
 	private final LockRegistry locks;
 	private Scheduler scheduler;
-	private RestTemplate restTemplate = new RestTemplate();
-	private Set<Long> hooks = new HashSet<>();
-
-	public HookPinger(LockRegistry locks, HookRepository repository,
-			Scheduler scheduler) {
+	private final HookDispatcher dispatcher;
+	private final HookMetrics metrics;
+	private final HookWriter writer;
+	private final HookAdmission admission;
+	private final HookJitter jitter;
+	private final Map<Long, String> crons = new HashMap<>();
+	private final Map<String, List<Long>> groups = new HashMap<>();
+	private final Map<String, Runnable> tasks = new HashMap<>();
+
+	@Value("${hooks.sync.cron:*/30 * * * * *}")
+	private String syncCron;
+
+	@Value("${hooks.sync.slack:60000}")
+	private long slack;
+
+	private long modified = 0L;
+
+	public HookPinger(LockRegistry locks, HookRepository repository, HookCache cache,
+			HookDispatcher dispatcher, HookMetrics metrics, HookWriter writer,
+			HookAdmission admission, HookJitter jitter, Scheduler scheduler) {
 		this.locks = locks;
 		this.repository = repository;
+		this.cache = cache;
+		this.dispatcher = dispatcher;
+		this.metrics = metrics;
+		this.writer = writer;
+		this.admission = admission;
+		this.jitter = jitter;
 		this.scheduler = scheduler;
 	}
 
@@ -121,29 +163,164 @@ class HookPinger implements CommandLineRunner {
 					"*/10 * * * * *"));
 		}
 		for (Hook hook : repository.findAll()) {
-			if (!hooks.contains(hook.getId())) {
-				hooks.add(hook.getId());
-				scheduler.addTask(getTask(hook.getId()), hook.getCron());
-			}
+			register(hook);
 		}
+		scheduler.addTask(this::sync, syncCron);
 		scheduler.start();
 	}
 
-	private Runnable getTask(Long id) {
-		return () -> {
-			Hook hook = repository.findOne(id);
-			long version = hook.getVersion();
-			Lock lock = locks.obtain("hooks/" + hook.getId());
+	private synchronized void register(Hook hook) {
+		modified = Math.max(modified, hook.getModified());
+		String cron = crons.get(hook.getId());
+		if (hook.getCron() == null || hook.getCron().equals(cron)) {
+			return;
+		}
+		if (cron != null) {
+			logger.info("Rescheduling: " + hook);
+			leave(hook.getId(), cron);
+		}
+		// Hooks are spread over a few steps of the jitter window, and batched per step
+		long offset = jitter.offset(hook.getId(), JITTER_STEPS);
+		String key = key(hook.getCron(), offset);
+		List<Long> group = groups.get(key);
+		if (group == null) {
+			group = new CopyOnWriteArrayList<>();
+			Runnable task = getTask(key, offset, group);
 			try {
-				if (lock.tryLock()) {
-					checkVersion(hook, version);
-					logger.info("Pinging: " + hook);
-					restTemplate.exchange(hook.getUri(), hook.getMethod(), null,
-							Map.class);
-					updateVersion(hook, version);
+				scheduler.addTask(task, hook.getCron());
+			}
+			catch (IllegalArgumentException e) {
+				logger.info("Invalid cron: " + hook + " (" + e.getMessage() + ")");
+				return;
+			}
+			groups.put(key, group);
+			tasks.put(key, task);
+		}
+		group.add(hook.getId());
+		crons.put(hook.getId(), hook.getCron());
+	}
+
+	private synchronized void unregister(Long id) {
+		String cron = crons.remove(id);
+		cache.evict(id);
+		if (cron != null) {
+			logger.info("Cancelling: " + id);
+			leave(id, cron);
+		}
+	}
+
+	private void leave(Long id, String cron) {
+		String key = key(cron, jitter.offset(id, JITTER_STEPS));
+		List<Long> group = groups.get(key);
+		group.remove(id);
+		if (group.isEmpty()) {
+			groups.remove(key);
+			scheduler.removeTask(tasks.remove(key));
+		}
+	}
+
+	private static String key(String cron, long offset) {
+		return offset > 0 ? cron + "@" + offset : cron;
+	}
+
+	@Override
+	protected void onBeforeCreate(Hook hook) {
+		hook.setModified(System.currentTimeMillis());
+	}
+
+	@Override
+	protected void onBeforeSave(Hook hook) {
+		hook.setModified(System.currentTimeMillis());
+	}
+
+	@Override
+	protected void onAfterCreate(Hook hook) {
+		register(hook);
+	}
+
+	@Override
+	protected void onAfterSave(Hook hook) {
+		register(hook);
+	}
+
+	@Override
+	protected void onAfterDelete(Hook hook) {
+		unregister(hook.getId());
+	}
+
+	private void sync() {
+		// Pick up changes made through other nodes: new and deleted hooks by id, and
+		// edits by modification time (allowing some slack for clock skew)
+		try {
+			Set<Long> ids = new HashSet<>(repository.findAllIds());
+			Set<Long> known;
+			synchronized (this) {
+				known = new HashSet<>(crons.keySet());
+			}
+			for (Long id : known) {
+				if (!ids.contains(id)) {
+					unregister(id);
 				}
-				else {
-					logger.info("Missed: lock not taken");
+			}
+			ids.removeAll(known);
+			for (Hook hook : repository.findAll(ids)) {
+				cache.put(hook);
+				register(hook);
+			}
+			for (Hook hook : repository.findByModifiedGreaterThan(Math.max(modified - slack, 0))) {
+				// The snapshot may be from before an edit made through another node
+				cache.put(hook);
+				register(hook);
+			}
+		}
+		catch (Exception e) {
+			logger.info("Sync failed: " + e.getMessage());
+		}
+	}
+
+	private Runnable getTask(String name, long offset, List<Long> group) {
+		// All the hooks with the same cron expression (and jitter) are due at the same
+		// instant, so their locks can be taken (and released) and their firings claimed
+		// in a batch
+		return admission.firing(name, offset, (instant, done) -> {
+			Map<String, Hook> due = new LinkedHashMap<>();
+			Map<Object, Lock> held = Collections.emptyMap();
+			Set<Long> admitted = new HashSet<>();
+			try {
+				for (Long id : group) {
+					Hook hook = cache.get(id);
+					// Skip (coalesce) any hook whose last ping is still out
+					if (hook != null && admission.admit(id)) {
+						admitted.add(id);
+						due.put("hooks/" + id, hook);
+					}
+				}
+				long start = System.nanoTime();
+				held = tryLockAll(due.keySet());
+				metrics.locked(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+						held.size(), due.size() - held.size());
+				List<Long> ids = new ArrayList<>();
+				for (Object key : held.keySet()) {
+					ids.add(due.get(key).getId());
+				}
+				// The claim has to be in the store before the locks are released
+				Set<Long> claimed = writer.claim(ids, instant);
+				for (String key : due.keySet()) {
+					Hook hook = due.get(key);
+					if (!held.containsKey(key)) {
+						logger.info("Missed: lock not taken");
+					}
+					else if (!claimed.contains(hook.getId())) {
+						metrics.conflict();
+						logger.info("Missed: already fired " + hook);
+					}
+					else {
+						// The claimed instant only ever goes up for a hook, so it can be
+						// the fencing token (and the hook is released when the ping
+						// completes)
+						admitted.remove(hook.getId());
+						ping(hook, instant);
+					}
 				}
 			}
 			catch (Exception e) {
@@ -152,36 +329,82 @@ class HookPinger implements CommandLineRunner {
 				logger.info("Missed: " + e.getMessage());
 			}
 			finally {
-				try {
-					lock.unlock();
-				}
-				catch (Exception e) {
+				unlockAll(held.values());
+				for (Long id : admitted) {
+					admission.release(id);
 				}
+				done.run();
 			}
-		};
+		});
 	}
 
-	private void checkVersion(Hook hook, long version) {
-		Hook check = repository.findOne(hook.getId());
-		if (check.getVersion() != version) {
-			throw new RuntimeException("Version does not match: expected " + version
-					+ " but found " + check.getVersion());
+	private void ping(Hook hook, long token) {
+		try {
+			logger.info("Pinging: " + hook);
+			dispatcher.dispatch(hook, token, result -> admission.release(hook.getId()),
+					e -> {
+						logger.info("Missed: " + e.getMessage());
+						admission.release(hook.getId());
+					});
+		}
+		catch (Exception e) {
+			logger.info("Missed: " + e.getMessage());
+			admission.release(hook.getId());
 		}
 	}
 
-	private void updateVersion(Hook hook, long version) {
-		hook.setVersion(version + 1);
-		repository.save(hook);
+	private Map<Object, Lock> tryLockAll(Collection<String> keys) {
+		if (locks instanceof BatchLockRegistry) {
+			return ((BatchLockRegistry) locks).tryLockAll(keys);
+		}
+		if (locks instanceof LockServerRegistry) {
+			return ((LockServerRegistry) locks).tryLockAll(keys);
+		}
+		Map<Object, Lock> held = new HashMap<>();
+		for (String key : keys) {
+			Lock lock = locks.obtain(key);
+			try {
+				if (lock.tryLock()) {
+					held.put(key, lock);
+				}
+			}
+			catch (Exception e) {
+				logger.info("Missed: " + e.getMessage());
+			}
+		}
+		return held;
+	}
+
+	private void unlockAll(Collection<Lock> held) {
+		if (locks instanceof BatchLockRegistry) {
+			((BatchLockRegistry) locks).unlockAll(held);
+			return;
+		}
+		for (Lock lock : held) {
+			try {
+				lock.unlock();
+			}
+			catch (Exception e) {
+			}
+		}
 	}
 
 }
 
 @RepositoryRestResource
 interface HookRepository extends PagingAndSortingRepository<Hook, Long> {
+
+	@RestResource(exported = false)
+	List<Hook> findByModifiedGreaterThan(long modified);
+
+	@RestResource(exported = false)
+	@Query("select h.id from Hook h")
+	List<Long> findAllIds();
+
 }
 
 @Entity
-class Hook {
+class Hook implements HookTarget {
 
 	@Id
 	@GeneratedValue
@@ -203,8 +426,18 @@ class Hook {
 
 	private HttpMethod method = HttpMethod.POST;
 
+	/**
+	 * What to do with the response body: health-style hooks only need the status, so
+	 * by default the body is not read at all.
+	 */
+	private Response response = Response.STATUS;
+
 	private long version = 0L;
 
+	private long modified = 0L;
+
+	private long fired = 0L;
+
 	public long getVersion() {
 		return version;
 	}
@@ -217,6 +450,22 @@ class Hook {
 		return id;
 	}
 
+	public long getModified() {
+		return modified;
+	}
+
+	public void setModified(long modified) {
+		this.modified = modified;
+	}
+
+	public long getFired() {
+		return fired;
+	}
+
+	public void setFired(long fired) {
+		this.fired = fired;
+	}
+
 	public String getCron() {
 		return cron;
 	}
@@ -241,9 +490,96 @@ class Hook {
 		this.method = method;
 	}
 
+	public Response getResponse() {
+		return response == null ? Response.STATUS : response;
+	}
+
+	public void setResponse(Response response) {
+		this.response = response;
+	}
+
 	@Override
 	public String toString() {
 		return method + " [id=" + id + ", uri=" + uri + "]";
 	}
 
-}
\ No newline at end of file
+}
+
+@RepositoryRestResource
+interface FiringRepository extends Repository<Firing, Long> {
+
+	Page<Firing> findAll(Pageable pageable);
+
+	Firing findOne(Long id);
+
+	Page<Firing> findByHookOrderByStartedDesc(@Param("hook") Long hook,
+			Pageable pageable);
+
+	Page<Firing> findByStartedBetweenOrderByStartedDesc(@Param("from") long from,
+			@Param("to") long to, Pageable pageable);
+
+}
+
+/**
+ * One ping of a hook, as recorded in the journal. Read only: the rows are inserted (and
+ * eventually deleted) by the {@link HookJournal}.
+ */
+@Entity
+@Table(indexes = { @Index(columnList = "started"), @Index(columnList = "hook,started") })
+class Firing {
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private Long id;
+
+	private Long hook;
+
+	private long token;
+
+	private String node;
+
+	private long started;
+
+	private long duration;
+
+	private int status;
+
+	private String detail;
+
+	@SuppressWarnings("unused")
+	private Firing() {
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public Long getHook() {
+		return hook;
+	}
+
+	public long getToken() {
+		return token;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public long getStarted() {
+		return started;
+	}
+
+	public long getDuration() {
+		return duration;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getDetail() {
+		return detail;
+	}
+
+}
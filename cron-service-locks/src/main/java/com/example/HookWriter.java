@@ -0,0 +1,59 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Claims firings in the hook table, in one JDBC batch for all the hooks due at the same
+ * instant. A claim moves the hook's fired mark up to the instant, and only matches the
+ * row if no one has claimed that instant (or a later one) already, so it is safe even
+ * if a lock expired early.
+ */
+@Component
+class HookWriter {
+
+	private static final String CLAIM_QUERY = "UPDATE hook SET version=version+1, fired=? "
+			+ "WHERE id=? AND fired<?";
+
+	private final JdbcTemplate template;
+	private final TransactionTemplate transaction;
+
+	public HookWriter(JdbcTemplate template,
+			PlatformTransactionManager transactionManager) {
+		this.template = template;
+		this.transaction = new TransactionTemplate(transactionManager);
+	}
+
+	/**
+	 * Claim the firing at this instant for the hooks with these ids, and return the
+	 * ones that were claimed.
+	 */
+	public Set<Long> claim(Collection<Long> ids, long instant) {
+		Set<Long> claimed = new HashSet<>();
+		if (ids.isEmpty()) {
+			return claimed;
+		}
+		List<Long> list = new ArrayList<>(ids);
+		List<Object[]> batch = new ArrayList<>();
+		for (Long id : list) {
+			batch.add(new Object[] { instant, id, instant });
+		}
+		int[] counts = transaction
+				.execute(status -> template.batchUpdate(CLAIM_QUERY, batch));
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0) {
+				claimed.add(list.get(i));
+			}
+		}
+		return claimed;
+	}
+
+}
@@ -0,0 +1,26 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.ClusterHarness.Report;
+
+public class ClusterTests {
+
+	private static Logger logger = LoggerFactory.getLogger(ClusterTests.class);
+
+	@Test
+	public void threeNodesWithFailover() throws Exception {
+		ClusterHarness cluster = new ClusterHarness(CronServiceApplication.class, 3, 20);
+		Report report = cluster.run(10000, 20000, true);
+		logger.info(report.toString());
+		assertThat(report.getFiringsPerSecond()).isGreaterThan(0);
+		assertThat(report.getMissedRate()).as(report.toString()).isLessThan(0.05);
+		assertThat(report.getDuplicateRate()).as(report.toString()).isLessThan(0.01);
+		assertThat(report.getStale()).isZero();
+	}
+
+}
@@ -1,33 +1,44 @@
 package com.example;
 
-import java.io.Closeable;
-import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 import javax.persistence.Version;
 import javax.transaction.Transactional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.Repository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+import org.springframework.data.rest.core.annotation.RestResource;
+import org.springframework.data.rest.core.event.AbstractRepositoryEventListener;
 import org.springframework.http.HttpMethod;
-import org.springframework.scheduling.annotation.SchedulingConfigurer;
-import org.springframework.scheduling.config.CronTask;
-import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.scheduling.support.CronSequenceGenerator;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 
 import com.example.Hook.State;
 
@@ -40,66 +51,56 @@ public class CronServiceOptimistApplication {
 }
 
 @Component
-class Scheduler implements SchedulingConfigurer, Closeable {
+class HookPinger extends AbstractRepositoryEventListener<Hook>
+		implements CommandLineRunner {
 
-	private volatile ScheduledTaskRegistrar taskRegistrar;
-	private volatile ExecutorService pool;
-	private volatile boolean running = false;
+	private static Logger logger = LoggerFactory.getLogger(HookPinger.class);
 
-	@Override
-	public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
-		this.taskRegistrar = taskRegistrar;
-	}
+	private final HookService service;
+	private final HookRepository hooks;
+	private Scheduler scheduler;
+	private final HookDispatcher dispatcher;
+	private final HookMetrics metrics;
+	private final HookWriter writer;
+	private final HookAdmission admission;
+	private final HookJitter jitter;
+	private final Map<Long, String> crons = new HashMap<>();
+	private final Map<Long, Runnable> tasks = new HashMap<>();
+	private final Map<Long, Hook> definitions = new ConcurrentHashMap<>();
 
-	public void addTask(Runnable task, String expression) {
-		if (running) {
-			taskRegistrar.scheduleCronTask(new CronTask(task, expression));
-		}
-		else {
-			taskRegistrar.addCronTask(new CronTask(task, expression));
-		}
-	}
+	@Value("${hooks.sync.cron:*/30 * * * * *}")
+	private String syncCron;
 
-	public void start() {
-		running = true;
-		if (taskRegistrar != null) {
-			pool = Executors.newScheduledThreadPool(10);
-			taskRegistrar.setScheduler(pool);
-			taskRegistrar.afterPropertiesSet();
-		}
-	}
+	@Value("${hooks.sync.slack:60000}")
+	private long slack;
 
-	public void stop() {
-		if (taskRegistrar != null) {
-			taskRegistrar.destroy();
-			pool.shutdown();
-			pool = null;
-		}
-		running = false;
-	}
+	@Value("${hooks.retry.cron:* * * * * *}")
+	private String retryCron;
 
-	@Override
-	public void close() throws IOException {
-		stop();
-	}
+	@Value("${hooks.retry.max-attempts:3}")
+	private int maxAttempts;
 
-}
+	@Value("${hooks.retry.initial-delay:1000}")
+	private long initialDelay;
 
-@Component
-class HookPinger implements CommandLineRunner {
+	@Value("${hooks.retry.max-delay:60000}")
+	private long maxDelay;
 
-	private static Logger logger = LoggerFactory.getLogger(HookPinger.class);
+	@Value("${hooks.retry.batch-size:100}")
+	private int retryBatchSize;
 
-	private final HookService service;
-	private final HookRepository hooks;
-	private Scheduler scheduler;
-	private RestTemplate restTemplate = new RestTemplate();
-	private Set<Long> cache = new HashSet<>();
+	private long modified = 0L;
 
 	public HookPinger(HookService service, HookRepository repository,
-			Scheduler scheduler) {
+			HookDispatcher dispatcher, HookMetrics metrics, HookWriter writer,
+			HookAdmission admission, HookJitter jitter, Scheduler scheduler) {
 		this.service = service;
 		this.hooks = repository;
+		this.dispatcher = dispatcher;
+		this.metrics = metrics;
+		this.writer = writer;
+		this.admission = admission;
+		this.jitter = jitter;
 		this.scheduler = scheduler;
 	}
 
@@ -110,44 +111,251 @@ class HookPinger implements CommandLineRunner {
 					"*/10 * * * * *"));
 		}
 		for (Hook hook : hooks.findAll()) {
-			if (!cache.contains(hook.getId())) {
-				cache.add(hook.getId());
-				scheduler.addTask(getTask(hook.getId()), hook.getCron());
-			}
+			register(hook);
+		}
+		scheduler.addTask(this::sync, syncCron);
+		if (maxAttempts > 0) {
+			scheduler.addTask(this::retry, retryCron);
 		}
 		scheduler.start();
 	}
 
+	private synchronized void register(Hook hook) {
+		modified = Math.max(modified, hook.getModified());
+		definitions.put(hook.getId(), hook);
+		String cron = crons.get(hook.getId());
+		if (hook.getCron() == null || hook.getCron().equals(cron)) {
+			return;
+		}
+		if (cron != null) {
+			logger.info("Rescheduling: " + hook);
+			scheduler.removeTask(tasks.remove(hook.getId()));
+		}
+		Runnable task = getTask(hook.getId());
+		try {
+			scheduler.addTask(task, hook.getCron());
+		}
+		catch (IllegalArgumentException e) {
+			crons.remove(hook.getId());
+			logger.info("Invalid cron: " + hook + " (" + e.getMessage() + ")");
+			return;
+		}
+		crons.put(hook.getId(), hook.getCron());
+		tasks.put(hook.getId(), task);
+	}
+
+	private synchronized void unregister(Long id) {
+		definitions.remove(id);
+		crons.remove(id);
+		Runnable task = tasks.remove(id);
+		if (task != null) {
+			logger.info("Cancelling: " + id);
+			scheduler.removeTask(task);
+		}
+	}
+
+	@Override
+	protected void onBeforeCreate(Hook hook) {
+		hook.setModified(System.currentTimeMillis());
+	}
+
+	@Override
+	protected void onBeforeSave(Hook hook) {
+		hook.setModified(System.currentTimeMillis());
+	}
+
+	@Override
+	protected void onAfterCreate(Hook hook) {
+		register(hook);
+	}
+
+	@Override
+	protected void onAfterSave(Hook hook) {
+		register(hook);
+	}
+
+	@Override
+	protected void onAfterDelete(Hook hook) {
+		unregister(hook.getId());
+	}
+
+	private void sync() {
+		// Pick up changes made through other nodes: new and deleted hooks by id, and
+		// edits by modification time (allowing some slack for clock skew)
+		try {
+			Set<Long> ids = new HashSet<>(hooks.findAllIds());
+			Set<Long> known;
+			synchronized (this) {
+				known = new HashSet<>(crons.keySet());
+			}
+			for (Long id : known) {
+				if (!ids.contains(id)) {
+					unregister(id);
+				}
+			}
+			ids.removeAll(known);
+			for (Hook hook : hooks.findAll(ids)) {
+				register(hook);
+			}
+			for (Hook hook : hooks.findByModifiedGreaterThan(Math.max(modified - slack, 0))) {
+				register(hook);
+			}
+		}
+		catch (Exception e) {
+			logger.info("Sync failed: " + e.getMessage());
+		}
+	}
+
 	private Runnable getTask(Long id) {
-		return () -> {
-			Hook hook = null;
+		// A tick while the last firing is still running here is coalesced before it gets
+		// as far as the database (where it would only be an AlreadyRunningException)
+		return admission.firing(id, jitter.offset(id), (instant, done) -> {
+			// The uri and method come from the registered definition, so the only
+			// database traffic per firing is the claim and the finish
+			Hook hook = definitions.get(id);
+			if (hook == null) {
+				done.run();
+				return;
+			}
+			long token;
 			try {
-				hook = service.start(id);
-				logger.info("Pinging: " + hook);
-				restTemplate.exchange(hook.getUri(), hook.getMethod(), null, Map.class);
-				hook.setState(State.COMPLETE);
+				token = service.start(id, instant);
 			}
 			catch (AlreadyRunningException e) {
+				metrics.conflict();
 				logger.info(e.getMessage());
+				done.run();
+				return;
 			}
 			catch (Exception e) {
-				// Don't care
-				if (hook != null) {
-					hook.setState(State.FAILED);
-					logger.info("Failed: " + hook + " (" + e.getMessage() + ")");
-				} else {
-					logger.info("Missed: " + e.getMessage());
-				}
+				// The claim may or may not have gone through, and without its version
+				// there is no safe way to finish it: skip this firing
+				logger.info("Missed: " + e.getMessage());
+				done.run();
+				return;
 			}
-			finally {
-				try {
-					service.update(hook, id);
-				}
-				catch (Exception e) {
-					// Don't care
-				}
+			ping(hook, token, 0, done);
+		});
+	}
+
+	private void retry() {
+		// Failed firings that are due for another attempt, soonest first. Other nodes
+		// see the same ones, but only one can claim each at the version read here.
+		List<Object[]> due;
+		try {
+			due = hooks.findRetries(State.FAILED, System.currentTimeMillis(),
+					new PageRequest(0, retryBatchSize));
+		}
+		catch (Exception e) {
+			logger.info("Retry failed: " + e.getMessage());
+			return;
+		}
+		for (Object[] row : due) {
+			Long id = (Long) row[0];
+			long version = (Long) row[1];
+			int attempt = (Integer) row[2];
+			Hook hook = definitions.get(id);
+			if (hook == null || !admission.admit(id)) {
+				continue;
+			}
+			Runnable done = () -> admission.release(id);
+			long token;
+			try {
+				token = service.retry(id, version);
+			}
+			catch (AlreadyRunningException e) {
+				logger.debug(e.getMessage());
+				done.run();
+				continue;
+			}
+			catch (Exception e) {
+				logger.info("Missed: " + e.getMessage());
+				done.run();
+				continue;
 			}
-		};
+			logger.info("Retrying: " + hook + " (attempt " + attempt + ")");
+			metrics.retried();
+			ping(hook, token, attempt, done);
+		}
+	}
+
+	private void ping(Hook hook, long token, int attempt, Runnable done) {
+		Long id = hook.getId();
+		try {
+			logger.info("Pinging: " + hook);
+			// The finish happens on another thread when the ping completes
+			dispatcher.dispatch(hook, token, result -> finish(id, token, State.COMPLETE, done),
+					e -> {
+						logger.info("Failed: " + hook + " (" + e.getMessage() + ")");
+						fail(hook, token, attempt, done);
+					});
+		}
+		catch (Exception e) {
+			logger.info("Failed: " + hook + " (" + e.getMessage() + ")");
+			fail(hook, token, attempt, done);
+		}
+	}
+
+	private void finish(Long id, long token, State state, Runnable done) {
+		try {
+			writer.finish(id, token, state);
+		}
+		finally {
+			done.run();
+		}
+	}
+
+	/**
+	 * The ping for this attempt (0 for a regular firing) failed: retry it later if there
+	 * is any budget left.
+	 */
+	private void fail(Hook hook, long token, int attempt, Runnable done) {
+		try {
+			long retryAt = retryAt(hook, attempt + 1);
+			if (retryAt > 0) {
+				writer.finish(hook.getId(), token, State.FAILED, retryAt, attempt + 1);
+			}
+			else {
+				writer.finish(hook.getId(), token, State.FAILED);
+			}
+		}
+		finally {
+			done.run();
+		}
+	}
+
+	/**
+	 * When to retry this attempt (counting from 1), or 0 if it should not be.
+	 */
+	long retryAt(Hook hook, int attempt) {
+		if (attempt > maxAttempts) {
+			if (maxAttempts > 0) {
+				metrics.exhausted();
+			}
+			return 0L;
+		}
+		long retryAt = System.currentTimeMillis() + backoff(attempt, initialDelay, maxDelay);
+		try {
+			// No point in a retry after the next regular firing
+			long next = new CronSequenceGenerator(hook.getCron()).next(new Date()).getTime()
+					+ jitter.offset(hook.getId());
+			return retryAt < next ? retryAt : 0L;
+		}
+		catch (IllegalArgumentException e) {
+			return 0L;
+		}
+	}
+
+	/**
+	 * The delay before this attempt (counting from 1): exponential backoff, with the upper
+	 * half of each step picked at random so that hooks that failed together do not all
+	 * come back together.
+	 */
+	static long backoff(int attempt, long initialDelay, long maxDelay) {
+		// Shifted any further the initial delay would overflow
+		long delay = attempt - 1 < Long.numberOfLeadingZeros(initialDelay) - 1
+				? Math.min(maxDelay, initialDelay << (attempt - 1)) : maxDelay;
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
 	}
 
 }
@@ -165,40 +373,82 @@ class AlreadyRunningException extends RuntimeException {
 @Transactional
 class HookService {
 
+	// Room for the retries, finishes and edits that move the version on between two
+	// instants, so that a claim can always set a version above all of them
+	static final long TOKEN_SPACING = 1024L;
+
 	private final HookRepository hooks;
 
 	public HookService(HookRepository hooks) {
 		this.hooks = hooks;
 	}
 
-	public Hook update(Hook hook, Long id) {
-		if (hook != null) {
-			return hooks.save(hook);
-		} else {
-			hook = hooks.findOne(id);
-			hook.setState(State.FAILED);
-			hooks.save(hook);
+	/**
+	 * Claim the hook for the firing at this cron instant and return its new version,
+	 * which is a fencing token for the ping (it only goes up, and only the claimant can
+	 * move it). Only one node can claim each instant, even if the firing on another node
+	 * has already finished by the time this one gets there. The version is computed from
+	 * the instant, so the claim is a single statement with nothing to read back.
+	 */
+	public long start(Long id, long instant) {
+		long token = instant * TOKEN_SPACING;
+		if (hooks.start(id, instant, token, State.RUNNING) == 0) {
+			throw new AlreadyRunningException("Already running or fired: " + id);
 		}
-		return null;
+		return token;
 	}
 
-	public Hook start(Long id) {
-		Hook hook = hooks.findOne(id);
-		if (hook.getState() == State.RUNNING) {
-			throw new RuntimeException("Already running: " + hook);
+	/**
+	 * Claim a failed hook for a retry, and return its new version (the fencing token).
+	 * The claim only succeeds if the version is still the one the retry was read at, so
+	 * a regular firing (or another node) that got there first wins.
+	 */
+	public long retry(Long id, long version) {
+		if (hooks.retry(id, version, State.FAILED, State.RUNNING) == 0) {
+			throw new AlreadyRunningException("Already retried: " + id);
 		}
-		hook.setState(State.RUNNING);
-		return hooks.save(hook);
+		return version + 1;
 	}
 
 }
 
 @RepositoryRestResource
 interface HookRepository extends PagingAndSortingRepository<Hook, Long> {
+
+	@RestResource(exported = false)
+	List<Hook> findByModifiedGreaterThan(long modified);
+
+	@RestResource(exported = false)
+	@Query("select h.id from Hook h")
+	List<Long> findAllIds();
+
+	@RestResource(exported = false)
+	@Modifying
+	@Query("update Hook h set h.state = :running, h.version = :token, "
+			+ "h.retryAt = 0, h.fired = :instant where h.id = :id "
+			+ "and h.state <> :running and h.fired < :instant and h.version < :token")
+	int start(@Param("id") Long id, @Param("instant") long instant,
+			@Param("token") long token, @Param("running") State running);
+
+	@RestResource(exported = false)
+	@Modifying
+	@Query("update Hook h set h.state = :running, h.version = h.version + 1, "
+			+ "h.retryAt = 0 where h.id = :id and h.version = :version "
+			+ "and h.state = :failed")
+	int retry(@Param("id") Long id, @Param("version") long version,
+			@Param("failed") State failed, @Param("running") State running);
+
+	@RestResource(exported = false)
+	@Query("select h.id, h.version, h.attempts from Hook h where h.state = :failed "
+			+ "and h.retryAt > 0 and h.retryAt <= :now order by h.retryAt")
+	List<Object[]> findRetries(@Param("failed") State failed, @Param("now") long now,
+			Pageable pageable);
+
 }
 
 @Entity
-class Hook {
+@Table(indexes = @Index(columnList = "retryAt"))
+class Hook implements HookTarget {
 
 	enum State {
 		COMPLETE, RUNNING, FAILED;
@@ -226,9 +476,32 @@ class Hook {
 
 	private HttpMethod method = HttpMethod.POST;
 
+	/**
+	 * What to do with the response body: health-style hooks only need the status, so
+	 * by default the body is not read at all.
+	 */
+	private Response response = Response.STATUS;
+
 	@Version
 	private long version = 0L;
 
+	private long modified = 0L;
+
+	/**
+	 * The cron instant of the last firing that claimed the hook.
+	 */
+	private long fired = 0L;
+
+	/**
+	 * When a failed firing is due to be retried (0 if it is not).
+	 */
+	private long retryAt = 0L;
+
+	/**
+	 * How many times the last failed firing has been retried.
+	 */
+	private int attempts = 0;
+
 	public long getVersion() {
 		return version;
 	}
@@ -237,6 +510,14 @@ class Hook {
 		return id;
 	}
 
+	public long getModified() {
+		return modified;
+	}
+
+	public void setModified(long modified) {
+		this.modified = modified;
+	}
+
 	public String getCron() {
 		return cron;
 	}
@@ -261,6 +542,14 @@ class Hook {
 		this.method = method;
 	}
 
+	public Response getResponse() {
+		return response == null ? Response.STATUS : response;
+	}
+
+	public void setResponse(Response response) {
+		this.response = response;
+	}
+
 	public State getState() {
 		return state;
 	}
@@ -269,9 +558,100 @@ class Hook {
 		this.state = state;
 	}
 
+	public long getFired() {
+		return fired;
+	}
+
+	public long getRetryAt() {
+		return retryAt;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
 	@Override
 	public String toString() {
 		return method + " [id=" + id + ", uri=" + uri + ", state=" + state + "]";
 	}
 
-}
\ No newline at end of file
+}
+
+@RepositoryRestResource
+interface FiringRepository extends Repository<Firing, Long> {
+
+	Page<Firing> findAll(Pageable pageable);
+
+	Firing findOne(Long id);
+
+	Page<Firing> findByHookOrderByStartedDesc(@Param("hook") Long hook,
+			Pageable pageable);
+
+	Page<Firing> findByStartedBetweenOrderByStartedDesc(@Param("from") long from,
+			@Param("to") long to, Pageable pageable);
+
+}
+
+/**
+ * One ping of a hook, as recorded in the journal. Read only: the rows are inserted (and
+ * eventually deleted) by the {@link HookJournal}.
+ */
+@Entity
+@Table(indexes = { @Index(columnList = "started"), @Index(columnList = "hook,started") })
+class Firing {
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private Long id;
+
+	private Long hook;
+
+	private long token;
+
+	private String node;
+
+	private long started;
+
+	private long duration;
+
+	private int status;
+
+	private String detail;
+
+	@SuppressWarnings("unused")
+	private Firing() {
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public Long getHook() {
+		return hook;
+	}
+
+	public long getToken() {
+		return token;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public long getStarted() {
+		return started;
+	}
+
+	public long getDuration() {
+		return duration;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getDetail() {
+		return detail;
+	}
+
+}
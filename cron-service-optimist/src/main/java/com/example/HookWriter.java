@@ -0,0 +1,150 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.Hook.State;
+
+/**
+ * Write-behind for the state change at the end of each firing (and the retry, if a
+ * failed one is to be retried). Updates are queued and flushed as a JDBC batch in one
+ * transaction, when the queue reaches the batch size or on a short interval. Each row is
+ * still conditional on the hook being {@link State#RUNNING RUNNING} at the version its
+ * claim was given, so a finish that lost its claim (or a late one from a node that has
+ * since been cut off) matches no rows and is rejected. A batch that fails is put back on
+ * the queue for the next flush, up to a maximum number of attempts, after which its
+ * updates are dropped (and counted), leaving their hooks {@link State#RUNNING RUNNING}.
+ */
+@Component
+class HookWriter implements InitializingBean, DisposableBean {
+
+	private static Logger logger = LoggerFactory.getLogger(HookWriter.class);
+
+	// The state column holds the enum ordinal (JPA default)
+	private static final String UPDATE_QUERY = "UPDATE hook SET state=?, retry_at=?, "
+			+ "attempts=?, version=version+1 WHERE id=? AND state=? AND version=?";
+
+	private final JdbcTemplate template;
+	private final TransactionTemplate transaction;
+	private final HookMetrics metrics;
+	private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+	private final ScheduledExecutorService flusher = Executors
+			.newSingleThreadScheduledExecutor(r -> new Thread(r, "hook-writer"));
+
+	@Value("${hooks.writer.interval:100}")
+	private long interval;
+
+	@Value("${hooks.writer.batch-size:500}")
+	private int batchSize;
+
+	@Value("${hooks.writer.max-attempts:50}")
+	private int maxAttempts;
+
+	public HookWriter(JdbcTemplate template,
+			PlatformTransactionManager transactionManager, HookMetrics metrics) {
+		this.template = template;
+		this.transaction = new TransactionTemplate(transactionManager);
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		flusher.scheduleWithFixedDelay(this::flush, interval, interval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		flusher.shutdown();
+		flush();
+	}
+
+	/**
+	 * Finish the firing that claimed the hook at this version (the fencing token).
+	 */
+	public void finish(Long id, long token, State state) {
+		finish(id, token, state, 0L, 0);
+	}
+
+	/**
+	 * Finish a firing that failed, with the time and number of the next attempt.
+	 */
+	public void finish(Long id, long token, State state, long retryAt, int attempts) {
+		queue.add(new Write(new Object[] { state.ordinal(), retryAt, attempts, id,
+				State.RUNNING.ordinal(), token }));
+		if (queue.size() >= batchSize) {
+			flusher.execute(this::flush);
+		}
+	}
+
+	synchronized void flush() {
+		List<Write> batch = new ArrayList<>();
+		while (queue.drainTo(batch, batchSize) > 0) {
+			List<Object[]> rows = new ArrayList<>();
+			for (Write write : batch) {
+				rows.add(write.row);
+			}
+			try {
+				int[] counts = transaction
+						.execute(status -> template.batchUpdate(UPDATE_QUERY, rows));
+				for (int i = 0; i < counts.length; i++) {
+					if (counts[i] == 0) {
+						logger.info("Rejected: hook " + rows.get(i)[3]
+								+ " is not running at version " + rows.get(i)[5]);
+					}
+				}
+			}
+			catch (Exception e) {
+				// Left alone the hooks would stay RUNNING and miss every firing after
+				// this one, so try again on the next flush (a finish that is stale by
+				// then is rejected by its version)
+				logger.info("Failed to write " + batch.size() + " results: "
+						+ e.getMessage());
+				requeue(batch);
+				return;
+			}
+			batch.clear();
+		}
+	}
+
+	private void requeue(List<Write> batch) {
+		for (Write write : batch) {
+			if (++write.attempts < maxAttempts) {
+				queue.add(write);
+			}
+			else {
+				metrics.unwritten();
+				logger.warn("Dropped the result of hook " + write.row[3] + " at version "
+						+ write.row[5] + " after " + write.attempts + " attempts");
+			}
+		}
+	}
+
+	private static class Write {
+
+		private final Object[] row;
+
+		private int attempts;
+
+		Write(Object[] row) {
+			this.row = row;
+		}
+
+	}
+
+}
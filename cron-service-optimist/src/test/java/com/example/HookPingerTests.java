@@ -0,0 +1,108 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class HookPingerTests {
+
+	private final HookMetrics metrics = mock(HookMetrics.class);
+
+	private HookPinger pinger;
+
+	@Before
+	public void init() {
+		pinger = new HookPinger(mock(HookService.class), mock(HookRepository.class),
+				mock(HookDispatcher.class), metrics, mock(HookWriter.class),
+				mock(HookAdmission.class), mock(HookJitter.class), mock(Scheduler.class));
+		ReflectionTestUtils.setField(pinger, "maxAttempts", 3);
+		ReflectionTestUtils.setField(pinger, "initialDelay", 1000L);
+		ReflectionTestUtils.setField(pinger, "maxDelay", 60000L);
+	}
+
+	@Test
+	public void backoffDoublesFromTheInitialDelay() {
+		for (int i = 0; i < 100; i++) {
+			assertThat(HookPinger.backoff(1, 1000L, 60000L)).isBetween(500L, 1000L);
+			assertThat(HookPinger.backoff(2, 1000L, 60000L)).isBetween(1000L, 2000L);
+			assertThat(HookPinger.backoff(5, 1000L, 60000L)).isBetween(8000L, 16000L);
+		}
+	}
+
+	@Test
+	public void backoffStopsAtTheMaximum() {
+		for (int i = 0; i < 100; i++) {
+			assertThat(HookPinger.backoff(7, 1000L, 60000L)).isBetween(30000L, 60000L);
+			assertThat(HookPinger.backoff(1000, 1000L, 60000L)).isBetween(30000L, 60000L);
+			assertThat(HookPinger.backoff(Integer.MAX_VALUE, 1000L, 60000L))
+					.isBetween(30000L, 60000L);
+		}
+	}
+
+	@Test
+	public void backoffDoesNotOverflow() {
+		long initial = Long.MAX_VALUE / 4;
+		for (int attempt = 1; attempt < 70; attempt++) {
+			assertThat(HookPinger.backoff(attempt, initial, Long.MAX_VALUE))
+					.isBetween(initial / 2, Long.MAX_VALUE);
+		}
+	}
+
+	@Test
+	public void backoffIsSpreadOut() {
+		long min = Long.MAX_VALUE;
+		long max = 0L;
+		for (int i = 0; i < 1000; i++) {
+			long delay = HookPinger.backoff(1, 1000L, 60000L);
+			min = Math.min(min, delay);
+			max = Math.max(max, delay);
+		}
+		assertThat(min).isLessThan(600L);
+		assertThat(max).isGreaterThan(900L);
+	}
+
+	@Test
+	public void retryComesAfterTheBackoff() {
+		Hook hook = hook("0 0 0 1 1 *");
+		long now = System.currentTimeMillis();
+		long retryAt = pinger.retryAt(hook, 1);
+		assertThat(retryAt).isBetween(now + 500L, now + 2000L);
+	}
+
+	@Test
+	public void noRetryAfterTheNextFiring() {
+		// Every second: even the first retry would come after the next tick
+		ReflectionTestUtils.setField(pinger, "initialDelay", 4000L);
+		assertThat(pinger.retryAt(hook("* * * * * *"), 1)).isZero();
+	}
+
+	@Test
+	public void noRetryPastTheMaximumAttempts() {
+		Hook hook = hook("0 0 0 1 1 *");
+		assertThat(pinger.retryAt(hook, 3)).isGreaterThan(0L);
+		verify(metrics, never()).exhausted();
+		assertThat(pinger.retryAt(hook, 4)).isZero();
+		verify(metrics).exhausted();
+	}
+
+	@Test
+	public void noRetriesAtAll() {
+		ReflectionTestUtils.setField(pinger, "maxAttempts", 0);
+		assertThat(pinger.retryAt(hook("0 0 0 1 1 *"), 1)).isZero();
+		// Not exhausted: there was never anything to retry
+		verify(metrics, never()).exhausted();
+	}
+
+	private static Hook hook(String cron) {
+		Hook hook = new Hook(HttpMethod.GET, "http://localhost:8080/health", cron);
+		ReflectionTestUtils.setField(hook, "id", 1L);
+		return hook;
+	}
+
+}
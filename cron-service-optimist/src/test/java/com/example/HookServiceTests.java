@@ -0,0 +1,43 @@
+package com.example;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+
+import com.example.Hook.State;
+
+public class HookServiceTests {
+
+	private final HookRepository hooks = mock(HookRepository.class);
+
+	private final HookService service = new HookService(hooks);
+
+	@Test
+	public void startIsOneStatement() {
+		when(hooks.start(eq(1L), eq(5000L), anyLong(), eq(State.RUNNING))).thenReturn(1);
+		long token = service.start(1L, 5000L);
+		verify(hooks).start(1L, 5000L, token, State.RUNNING);
+		verifyNoMoreInteractions(hooks);
+	}
+
+	@Test
+	public void tokensLeaveRoomForTheVersionsBetweenInstants() {
+		when(hooks.start(eq(1L), anyLong(), anyLong(), eq(State.RUNNING))).thenReturn(1);
+		long first = service.start(1L, 5000L);
+		// The next instant may be only a millisecond later
+		assertThat(service.start(1L, 5001L))
+				.isGreaterThanOrEqualTo(first + HookService.TOKEN_SPACING);
+	}
+
+	@Test(expected = AlreadyRunningException.class)
+	public void startThatMatchesNothingIsAlreadyRunning() {
+		service.start(1L, 5000L);
+	}
+
+}
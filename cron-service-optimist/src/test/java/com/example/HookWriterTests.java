@@ -0,0 +1,63 @@
+package com.example;
+
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.example.Hook.State;
+
+public class HookWriterTests {
+
+	private final JdbcTemplate template = mock(JdbcTemplate.class);
+
+	private final HookMetrics metrics = mock(HookMetrics.class);
+
+	private HookWriter writer;
+
+	@Before
+	public void init() {
+		writer = new HookWriter(template, mock(PlatformTransactionManager.class), metrics);
+		ReflectionTestUtils.setField(writer, "batchSize", 500);
+		ReflectionTestUtils.setField(writer, "maxAttempts", 3);
+	}
+
+	@Test
+	public void failedWriteIsRetried() {
+		when(template.batchUpdate(anyString(), anyListOf(Object[].class)))
+				.thenThrow(new DataAccessResourceFailureException("Down"))
+				.thenReturn(new int[] { 1 });
+		writer.finish(1L, 3L, State.COMPLETE);
+		writer.flush();
+		writer.flush();
+		verify(template, times(2)).batchUpdate(anyString(), anyListOf(Object[].class));
+		verify(metrics, never()).unwritten();
+		writer.flush();
+		verify(template, times(2)).batchUpdate(anyString(), anyListOf(Object[].class));
+	}
+
+	@Test
+	public void failedWriteIsDroppedAfterTheMaximumAttempts() {
+		when(template.batchUpdate(anyString(), anyListOf(Object[].class)))
+				.thenThrow(new DataAccessResourceFailureException("Down"));
+		writer.finish(1L, 3L, State.COMPLETE);
+		writer.flush();
+		writer.flush();
+		verify(metrics, never()).unwritten();
+		writer.flush();
+		verify(metrics).unwritten();
+		writer.flush();
+		verify(template, times(3)).batchUpdate(anyString(), anyListOf(Object[].class));
+	}
+
+}